@@ -0,0 +1,120 @@
+package cn.wuyukang.udaf.bench;
+
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按真实的模式生命周期驱动一个 UDAF：
+ * partial1 = iterate → terminatePartial，complete = iterate → terminate，
+ * partial2 = merge → terminatePartial，finalMerge = merge → terminate。
+ * iterate 类的基准按行计吞吐量，merge 类的基准按部分聚合结果个数计吞吐量。
+ * 每个分组的输入先被切成 PARTIALS 份，分别跑 PARTIAL1 得到 merge 阶段的输入。
+ *
+ * 子类负责生成行并指定 resolver 类名。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(org.openjdk.jmh.annotations.Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class AggregationBenchmark {
+
+    static final int ROWS = 1 << 16;
+    static final int PARTIALS = 16;
+
+    @Param({"java", "lazybinary"})
+    public String inspector;
+
+    RowSource rows;
+    AggregationPipeline pipeline;
+    Object[] shipped;
+
+    private AggregationBuffer partial1Buffer;
+    private AggregationBuffer completeBuffer;
+    private AggregationBuffer partial2Buffer;
+    private AggregationBuffer finalBuffer;
+
+    abstract String resolverClass();
+
+    abstract RowSource createRows(boolean lazy) throws Exception;
+
+    @Setup
+    public void setup() throws Exception {
+        boolean lazy = "lazybinary".equals(inspector);
+        rows = createRows(lazy);
+        pipeline = new AggregationPipeline(resolverClass(), rows.inputOIs(), lazy);
+
+        // 把输入切成 PARTIALS 份，每份单独跑 PARTIAL1
+        shipped = new Object[PARTIALS];
+        GenericUDAFEvaluator eval = pipeline.partial1;
+        AggregationBuffer agg = eval.getNewAggregationBuffer();
+        int slice = rows.size() / PARTIALS;
+        for (int p = 0; p < PARTIALS; p++) {
+            eval.reset(agg);
+            for (int i = p * slice; i < (p + 1) * slice; i++) {
+                eval.iterate(agg, rows.row(i));
+            }
+            shipped[p] = pipeline.ship(eval.terminatePartial(agg));
+        }
+
+        partial1Buffer = pipeline.partial1.getNewAggregationBuffer();
+        completeBuffer = pipeline.complete.getNewAggregationBuffer();
+        partial2Buffer = pipeline.partial2.getNewAggregationBuffer();
+        finalBuffer = pipeline.finalEval.getNewAggregationBuffer();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public Object partial1() throws Exception {
+        return iterate(pipeline.partial1, partial1Buffer, true);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public Object complete() throws Exception {
+        return iterate(pipeline.complete, completeBuffer, false);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PARTIALS)
+    public Object partial2() throws Exception {
+        return merge(pipeline.partial2, partial2Buffer, true);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PARTIALS)
+    public Object finalMerge() throws Exception {
+        return merge(pipeline.finalEval, finalBuffer, false);
+    }
+
+    private Object iterate(GenericUDAFEvaluator eval, AggregationBuffer agg, boolean partial) throws Exception {
+        eval.reset(agg);
+        int n = rows.size();
+        for (int i = 0; i < n; i++) {
+            eval.iterate(agg, rows.row(i));
+        }
+        return partial ? eval.terminatePartial(agg) : eval.terminate(agg);
+    }
+
+    private Object merge(GenericUDAFEvaluator eval, AggregationBuffer agg, boolean partial) throws Exception {
+        eval.reset(agg);
+        for (Object s : shipped) {
+            eval.merge(agg, pipeline.receive(s));
+        }
+        return partial ? eval.terminatePartial(agg) : eval.terminate(agg);
+    }
+}
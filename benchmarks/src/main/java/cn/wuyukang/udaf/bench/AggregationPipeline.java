@@ -0,0 +1,105 @@
+package cn.wuyukang.udaf.bench;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFResolver;
+import org.apache.hadoop.hive.serde2.SerDeException;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
+
+/**
+ * 一个聚合函数在四种模式下的 evaluator，按 Hive 的方式初始化：
+ * PARTIAL1/COMPLETE 用原始输入的 OI，PARTIAL2/FINAL 用 PARTIAL1 输出的部分聚合 OI。
+ *
+ * 函数实现类在默认包里，不能直接 import，所以和 Hive 的 FunctionRegistry 一样按类名反射加载 resolver。
+ * lazyPartials 为 true 时部分聚合结果经过 LazyBinarySerDe 序列化再反序列化，和真实 shuffle 一致。
+ */
+public class AggregationPipeline {
+
+    public final GenericUDAFEvaluator partial1;
+    public final GenericUDAFEvaluator partial2;
+    public final GenericUDAFEvaluator finalEval;
+    public final GenericUDAFEvaluator complete;
+
+    /* 各模式 init() 返回的输出 OI */
+    public final ObjectInspector partialOI;
+    public final ObjectInspector combinedOI;
+    public final ObjectInspector finalOI;
+    public final ObjectInspector completeOI;
+
+    private final LazyBinaryCodec partialCodec;
+    private final LazyBinaryCodec combinedCodec;
+
+    public AggregationPipeline(String resolverClass, ObjectInspector[] inputOIs, boolean lazyPartials)
+            throws HiveException, SerDeException {
+        GenericUDAFResolver resolver = newInstance(resolverClass, GenericUDAFResolver.class);
+        TypeInfo[] types = new TypeInfo[inputOIs.length];
+        for (int i = 0; i < inputOIs.length; i++) {
+            types[i] = TypeInfoUtils.getTypeInfoFromObjectInspector(inputOIs[i]);
+        }
+
+        partial1 = resolver.getEvaluator(types);
+        partialOI = partial1.init(Mode.PARTIAL1, inputOIs);
+
+        ObjectInspector mergeOI = partialOI;
+        if (lazyPartials) {
+            partialCodec = new LazyBinaryCodec(partialOI);
+            mergeOI = partialCodec.fieldOI(0);
+        } else {
+            partialCodec = null;
+        }
+
+        partial2 = resolver.getEvaluator(types);
+        combinedOI = partial2.init(Mode.PARTIAL2, new ObjectInspector[]{mergeOI});
+        finalEval = resolver.getEvaluator(types);
+        finalOI = finalEval.init(Mode.FINAL, new ObjectInspector[]{mergeOI});
+        complete = resolver.getEvaluator(types);
+        completeOI = complete.init(Mode.COMPLETE, inputOIs);
+
+        // PARTIAL2 输出的类型相同，但 OI 可能不同（比如从 Java 对象变成 Writable），要用自己的 OI 序列化
+        combinedCodec = lazyPartials ? new LazyBinaryCodec(combinedOI) : null;
+    }
+
+    static <T> T newInstance(String className, Class<T> type) throws HiveException {
+        try {
+            return type.cast(Class.forName(className).newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new HiveException("Cannot instantiate " + className, e);
+        }
+    }
+
+    /**
+     * 把 terminatePartial() 的结果变成可以保存起来的“shuffle 数据”。
+     * evaluator 可能复用返回的对象，所以 java 模式下要深拷贝；lazybinary 模式下序列化成字节。
+     */
+    public Object ship(Object partial) throws SerDeException {
+        if (partialCodec == null) {
+            return ObjectInspectorUtils.copyToStandardObject(partial, partialOI);
+        }
+        return partialCodec.serialize(partial);
+    }
+
+    /**
+     * 和 {@link #ship(Object)} 一样，用于 PARTIAL2（combiner）的 terminatePartial() 结果。
+     * 两种结果的序列化格式相同，都用 {@link #receive(Object)} 读回。
+     */
+    public Object shipCombined(Object partial) throws SerDeException {
+        if (combinedCodec == null) {
+            return ObjectInspectorUtils.copyToStandardObject(partial, combinedOI);
+        }
+        return combinedCodec.serialize(partial);
+    }
+
+    /**
+     * 把 ship() 的结果变成 merge() 的输入。lazybinary 模式下返回的对象只在下一次 receive() 之前有效。
+     */
+    public Object receive(Object shipped) throws SerDeException {
+        if (partialCodec == null) {
+            return shipped;
+        }
+        return partialCodec.field(partialCodec.deserialize((byte[]) shipped), 0);
+    }
+}
@@ -0,0 +1,104 @@
+package cn.wuyukang.udaf.bench;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * fp_avg(map) 的 evaluate()，按输入 map 个数计吞吐量。
+ * java 模式输入是 HashMap，lazybinary 模式输入是反序列化得到的 LazyBinaryMap。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(org.openjdk.jmh.annotations.Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FpAvgBenchmark {
+
+    static final int MAPS = 64;
+
+    @Param({"16", "4096"})
+    public int mapSize;
+
+    @Param({"0", "1.1"})
+    public double skew;
+
+    @Param({"java", "lazybinary"})
+    public String inspector;
+
+    private GenericUDF udf;
+    private Object[] maps;
+    private byte[][] bytes;
+    private LazyBinaryCodec codec;
+    private final Argument argument = new Argument();
+
+    static class Argument implements GenericUDF.DeferredObject {
+        Object value;
+
+        public void prepare(int version) throws HiveException {
+        }
+
+        public Object get() throws HiveException {
+            return value;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        ObjectInspector mapOI = ObjectInspectorFactory.getStandardMapObjectInspector(
+                PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+                PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+
+        maps = new Object[MAPS];
+        for (int m = 0; m < MAPS; m++) {
+            // 每个 map 大约有 mapSize 个键，计数服从给定的倾斜度
+            Map<Double, Long> map = new HashMap<Double, Long>();
+            for (double v : Inputs.doubles(mapSize * 8, mapSize, skew, m)) {
+                Long c = map.get(v);
+                map.put(v, c == null ? 1L : c + 1);
+            }
+            maps[m] = map;
+        }
+
+        udf = AggregationPipeline.newInstance("GenericUDFAvg", GenericUDF.class);
+        if ("lazybinary".equals(inspector)) {
+            codec = new LazyBinaryCodec(mapOI);
+            bytes = new byte[MAPS][];
+            for (int m = 0; m < MAPS; m++) {
+                bytes[m] = codec.serialize(maps[m]);
+            }
+            udf.initialize(new ObjectInspector[]{codec.fieldOI(0)});
+        } else {
+            udf.initialize(new ObjectInspector[]{mapOI});
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MAPS)
+    public void evaluate(Blackhole bh) throws Exception {
+        GenericUDF.DeferredObject[] args = new GenericUDF.DeferredObject[]{argument};
+        for (int m = 0; m < MAPS; m++) {
+            argument.value = codec == null ? maps[m] : codec.field(codec.deserialize(bytes[m]), 0);
+            bh.consume(udf.evaluate(args));
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package cn.wuyukang.udaf.bench;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 生成可控基数、倾斜度和行宽的合成数据。同样的参数和种子总是生成同样的数据。
+ */
+public final class Inputs {
+
+    /* 生成的 double 都是这个分辨率的整数倍，模拟量化过的传感器读数 */
+    static final double RESOLUTION = 0.25;
+
+    private Inputs() {
+    }
+
+    /**
+     * @param rows        行数
+     * @param cardinality 不同值的个数
+     * @param skew        Zipf 指数，0 表示均匀分布，越大越倾斜
+     * @param seed
+     */
+    public static double[] doubles(int rows, int cardinality, double skew, long seed) {
+        Random random = new Random(seed);
+        double[] values = new double[rows];
+        if (skew <= 0) {
+            for (int i = 0; i < rows; i++) {
+                values[i] = random.nextInt(cardinality) * RESOLUTION;
+            }
+            return values;
+        }
+        // Zipf 的累积分布表，按随机数二分查找
+        double[] cdf = new double[cardinality];
+        double sum = 0;
+        for (int i = 0; i < cardinality; i++) {
+            sum += 1.0 / Math.pow(i + 1, skew);
+            cdf[i] = sum;
+        }
+        // 打乱排名和取值的对应关系，避免最热的值总是最小的值
+        int[] permutation = new int[cardinality];
+        for (int i = 0; i < cardinality; i++) {
+            permutation[i] = i;
+        }
+        for (int i = cardinality - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = permutation[i];
+            permutation[i] = permutation[j];
+            permutation[j] = t;
+        }
+        for (int i = 0; i < rows; i++) {
+            int rank = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+            if (rank < 0) {
+                rank = -rank - 1;
+            }
+            values[i] = permutation[Math.min(rank, cardinality - 1)] * RESOLUTION;
+        }
+        return values;
+    }
+
+    /**
+     * 分组键，取值 0 到 groups - 1，分布和 {@link #doubles(int, int, double, long)} 相同。
+     */
+    public static int[] groups(int rows, int groups, double skew, long seed) {
+        double[] values = doubles(rows, groups, skew, seed);
+        int[] result = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            result[i] = (int) (values[i] / RESOLUTION);
+        }
+        return result;
+    }
+
+    /**
+     * 第 0 列是 keys 里的 double，其余 width - 1 列是长度为 16 的字符串。
+     */
+    public static Object[][] rows(double[] keys, int width, long seed) {
+        Random random = new Random(seed);
+        char[] chars = new char[16];
+        Object[][] rows = new Object[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            Object[] row = new Object[width];
+            row[0] = keys[i];
+            for (int c = 1; c < width; c++) {
+                for (int j = 0; j < chars.length; j++) {
+                    chars[j] = (char) ('a' + random.nextInt(26));
+                }
+                row[c] = new String(chars);
+            }
+            rows[i] = row;
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,88 @@
+package cn.wuyukang.udaf.bench;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.serde.serdeConstants;
+import org.apache.hadoop.hive.serde2.SerDeException;
+import org.apache.hadoop.hive.serde2.lazybinary.LazyBinarySerDe;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
+import org.apache.hadoop.io.BytesWritable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * 用真实的 LazyBinarySerDe 把行序列化成字节，再反序列化成 LazyBinaryStruct，
+ * 这样 evaluator 看到的就是 shuffle 之后 reduce 端真正拿到的对象和 OI。
+ * 反序列化返回的对象会被 SerDe 复用，每次只能用到下一次 deserialize 之前。
+ */
+public class LazyBinaryCodec {
+
+    private final LazyBinarySerDe serde = new LazyBinarySerDe();
+    private final StructObjectInspector writeOI;
+    private final StructObjectInspector readOI;
+    private final List<? extends StructField> readFields;
+    private final BytesWritable buffer = new BytesWritable();
+
+    /**
+     * @param columnOIs 写入时各列的 OI
+     */
+    public LazyBinaryCodec(ObjectInspector... columnOIs) throws SerDeException {
+        List<String> names = new ArrayList<String>(columnOIs.length);
+        StringBuilder types = new StringBuilder();
+        for (int i = 0; i < columnOIs.length; i++) {
+            names.add("col" + i);
+            if (i > 0) {
+                types.append(':');
+            }
+            types.append(TypeInfoUtils.getTypeInfoFromObjectInspector(columnOIs[i]).getTypeName());
+        }
+        Properties props = new Properties();
+        props.setProperty(serdeConstants.LIST_COLUMNS, join(names));
+        props.setProperty(serdeConstants.LIST_COLUMN_TYPES, types.toString());
+        serde.initialize(new Configuration(), props);
+        writeOI = ObjectInspectorFactory.getStandardStructObjectInspector(names, Arrays.asList(columnOIs));
+        readOI = (StructObjectInspector) serde.getObjectInspector();
+        readFields = readOI.getAllStructFieldRefs();
+    }
+
+    private static String join(List<String> names) {
+        StringBuilder sb = new StringBuilder();
+        for (String name : names) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(name);
+        }
+        return sb.toString();
+    }
+
+    public byte[] serialize(Object... row) throws SerDeException {
+        BytesWritable bytes = (BytesWritable) serde.serialize(Arrays.asList(row), writeOI);
+        return Arrays.copyOf(bytes.getBytes(), bytes.getLength());
+    }
+
+    public Object deserialize(byte[] bytes) throws SerDeException {
+        buffer.set(bytes, 0, bytes.length);
+        return serde.deserialize(buffer);
+    }
+
+    /**
+     * @return 反序列化后第 i 列的 OI
+     */
+    public ObjectInspector fieldOI(int i) {
+        return readFields.get(i).getFieldObjectInspector();
+    }
+
+    /**
+     * @return 反序列化后的行中第 i 列的值
+     */
+    public Object field(Object row, int i) {
+        return readOI.getStructFieldData(row, readFields.get(i));
+    }
+}
@@ -0,0 +1,35 @@
+package cn.wuyukang.udaf.bench;
+
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * map_count 及复用它的 fp_avg_agg。
+ */
+public class MapCountBenchmark extends AggregationBenchmark {
+
+    @Param({"GenericUDAFMap", "GenericUDAFFpAvg"})
+    public String function;
+
+    @Param({"100", "100000"})
+    public int cardinality;
+
+    @Param({"0", "1.1"})
+    public double skew;
+
+    @Override
+    String resolverClass() {
+        return function;
+    }
+
+    @Override
+    RowSource createRows(boolean lazy) throws Exception {
+        double[] values = Inputs.doubles(ROWS, cardinality, skew, 42);
+        Object[][] rows = new Object[ROWS][];
+        for (int i = 0; i < ROWS; i++) {
+            rows[i] = new Object[]{values[i]};
+        }
+        return new RowSource(rows, new ObjectInspector[]{PrimitiveObjectInspectorFactory.javaDoubleObjectInspector}, lazy);
+    }
+}
@@ -0,0 +1,36 @@
+package cn.wuyukang.udaf.bench;
+
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * maxrow(key, cols...)，第 0 列是 double 键，其余列是字符串。
+ */
+public class MaxRowBenchmark extends AggregationBenchmark {
+
+    @Param({"2", "16"})
+    public int width;
+
+    @Param({"100", "100000"})
+    public int cardinality;
+
+    @Param({"0", "1.1"})
+    public double skew;
+
+    @Override
+    String resolverClass() {
+        return "GenericUDAFMaxRow";
+    }
+
+    @Override
+    RowSource createRows(boolean lazy) throws Exception {
+        double[] keys = Inputs.doubles(ROWS, cardinality, skew, 42);
+        ObjectInspector[] ois = new ObjectInspector[width];
+        ois[0] = PrimitiveObjectInspectorFactory.javaDoubleObjectInspector;
+        for (int i = 1; i < width; i++) {
+            ois[i] = PrimitiveObjectInspectorFactory.javaStringObjectInspector;
+        }
+        return new RowSource(Inputs.rows(keys, width, 7), ois, lazy);
+    }
+}
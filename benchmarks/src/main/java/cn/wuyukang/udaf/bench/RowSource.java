@@ -0,0 +1,58 @@
+package cn.wuyukang.udaf.bench;
+
+import org.apache.hadoop.hive.serde2.SerDeException;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+
+/**
+ * iterate() 的输入行。java 模式直接给出 Java 对象；lazybinary 模式每次取行时都反序列化一次，
+ * 和 map 端读 LazyBinary 中间表时一样，返回的数组和对象会被复用。
+ */
+public class RowSource {
+
+    private final Object[][] rows;
+    private final byte[][] bytes;
+    private final LazyBinaryCodec codec;
+    private final ObjectInspector[] inputOIs;
+    private final Object[] params;
+
+    public RowSource(Object[][] rows, ObjectInspector[] javaOIs, boolean lazy) throws SerDeException {
+        if (lazy) {
+            codec = new LazyBinaryCodec(javaOIs);
+            bytes = new byte[rows.length][];
+            for (int i = 0; i < rows.length; i++) {
+                bytes[i] = codec.serialize(rows[i]);
+            }
+            inputOIs = new ObjectInspector[javaOIs.length];
+            for (int i = 0; i < javaOIs.length; i++) {
+                inputOIs[i] = codec.fieldOI(i);
+            }
+            params = new Object[javaOIs.length];
+            this.rows = null;
+        } else {
+            codec = null;
+            bytes = null;
+            inputOIs = javaOIs;
+            params = null;
+            this.rows = rows;
+        }
+    }
+
+    public ObjectInspector[] inputOIs() {
+        return inputOIs;
+    }
+
+    public int size() {
+        return rows != null ? rows.length : bytes.length;
+    }
+
+    public Object[] row(int i) throws SerDeException {
+        if (rows != null) {
+            return rows[i];
+        }
+        Object row = codec.deserialize(bytes[i]);
+        for (int c = 0; c < params.length; c++) {
+            params[c] = codec.field(row, c);
+        }
+        return params;
+    }
+}
@@ -0,0 +1,419 @@
+package cn.wuyukang.udaf.bench;
+
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AbstractAggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 在一个进程里用多个线程模拟 map → (combine) → shuffle → reduce，观察聚合函数随 mapper 数和 reducer 扇入的变化，
+ * 同时校验分布式执行的结果和单线程 COMPLETE 模式的结果一致，不需要集群。
+ *
+ * map：每个线程处理一段输入，和 Hive map 端的 GroupByOperator 一样按分组键做 hash 聚合（PARTIAL1），
+ *      每个分组输出一个部分聚合结果，按 分组键 % reducer 数 分区。
+ * combine：可选，第 i 个 mapper 的输出交给第 i % combiners 个 combiner，排序后逐组 merge（PARTIAL2）。
+ * reduce：每个线程拿到自己分区的全部部分聚合结果，排序后逐组 merge（FINAL）。
+ *
+ * 部分聚合结果都经过真实的 LazyBinarySerDe 序列化，shuffle 字节数就是这些字节的总长度。
+ * 缓存内存用 AbstractAggregationBuffer.estimate() 估算：map 阶段是一个 task 里所有分组缓存之和，
+ * combine/reduce 逐组处理，是单个分组缓存的最大值。不支持估算的缓存（如 maxrow）显示 n/a。
+ *
+ * 参数都是 key=value，mappers、combiners、reducers 可以是逗号分隔的列表，会依次运行所有组合：
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar cn.wuyukang.udaf.bench.ShuffleSimulator \
+ *     function=GenericUDAFMap rows=4000000 groups=1000 mappers=1,4,16 combiners=0,2 reducers=1,4
+ * </pre>
+ */
+public class ShuffleSimulator {
+
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<String, String>();
+
+    static {
+        DEFAULTS.put("function", "GenericUDAFMap");  // resolver 类名
+        DEFAULTS.put("rows", "1000000");
+        DEFAULTS.put("groups", "1000");              // 分组个数
+        DEFAULTS.put("groupSkew", "0");              // 分组大小的 Zipf 指数
+        DEFAULTS.put("cardinality", "1000");         // 第 0 列不同值的个数
+        DEFAULTS.put("skew", "0");                   // 第 0 列的 Zipf 指数
+        DEFAULTS.put("width", "1");                  // 参数个数，第 0 列是 double，其余是字符串
+        DEFAULTS.put("input", "java");               // mapper 的输入：java 或 lazybinary
+        DEFAULTS.put("mappers", "4");
+        DEFAULTS.put("combiners", "0");              // 0 表示没有 combine 阶段
+        DEFAULTS.put("reducers", "2");
+        DEFAULTS.put("seed", "42");
+    }
+
+    static class ShuffleRecord {
+        final int group;
+        final byte[] bytes;
+
+        ShuffleRecord(int group, byte[] bytes) {
+            this.group = group;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final Comparator<ShuffleRecord> BY_GROUP = new Comparator<ShuffleRecord>() {
+        @Override
+        public int compare(ShuffleRecord o1, ShuffleRecord o2) {
+            return Integer.compare(o1.group, o2.group);
+        }
+    };
+
+    /**
+     * 一个 map/combine/reduce task，只在一个线程里运行，自己持有 evaluator 和 SerDe。
+     */
+    abstract static class Task implements Callable<Void> {
+
+        final AggregationPipeline pipeline;
+        final boolean estimable;
+        final List<List<ShuffleRecord>> output;
+
+        long recordsIn;
+        long recordsOut;
+        long shuffleBytes;
+        long peakBufferBytes;
+
+        Task(AggregationPipeline pipeline, int partitions) throws Exception {
+            this.pipeline = pipeline;
+            this.estimable = GenericUDAFEvaluator.isEstimable(pipeline.partial1.getNewAggregationBuffer());
+            this.output = new ArrayList<List<ShuffleRecord>>(partitions);
+            for (int i = 0; i < partitions; i++) {
+                output.add(new ArrayList<ShuffleRecord>());
+            }
+        }
+
+        @Override
+        public Void call() throws Exception {
+            run();
+            return null;
+        }
+
+        abstract void run() throws Exception;
+
+        /* 和 Hive 一样按键的 hashCode 分区，int 的 hashCode 就是它自己 */
+        void emit(int group, byte[] bytes) {
+            output.get((group & Integer.MAX_VALUE) % output.size()).add(new ShuffleRecord(group, bytes));
+            recordsOut++;
+            shuffleBytes += bytes.length;
+        }
+
+        long estimate(AggregationBuffer agg) {
+            return estimable ? ((AbstractAggregationBuffer) agg).estimate() : 0;
+        }
+    }
+
+    static class MapTask extends Task {
+
+        private final RowSource rows;
+        private final int[] groups;
+        private final int offset;
+
+        MapTask(String function, RowSource rows, int[] groups, int offset, int partitions) throws Exception {
+            super(new AggregationPipeline(function, rows.inputOIs(), true), partitions);
+            this.rows = rows;
+            this.groups = groups;
+            this.offset = offset;
+        }
+
+        @Override
+        void run() throws Exception {
+            GenericUDAFEvaluator eval = pipeline.partial1;
+            Map<Integer, AggregationBuffer> buffers = new HashMap<Integer, AggregationBuffer>();
+            long bufferBytes = 0;
+            int n = rows.size();
+            for (int i = 0; i < n; i++) {
+                Integer group = groups[offset + i];
+                AggregationBuffer agg = buffers.get(group);
+                if (agg == null) {
+                    agg = eval.getNewAggregationBuffer();
+                    buffers.put(group, agg);
+                    bufferBytes += estimate(agg);
+                }
+                long before = estimate(agg);
+                eval.iterate(agg, rows.row(i));
+                bufferBytes += estimate(agg) - before;
+                if (bufferBytes > peakBufferBytes) {
+                    peakBufferBytes = bufferBytes;
+                }
+            }
+            recordsIn = n;
+            for (Map.Entry<Integer, AggregationBuffer> entry : buffers.entrySet()) {
+                emit(entry.getKey(), (byte[]) pipeline.ship(eval.terminatePartial(entry.getValue())));
+            }
+        }
+    }
+
+    /**
+     * combine 和 reduce 都是先按分组键排序（shuffle 的排序阶段），再逐组 merge，同时只持有一个分组缓存。
+     */
+    static class MergeTask extends Task {
+
+        private final boolean combine;
+        final List<ShuffleRecord> input = new ArrayList<ShuffleRecord>();
+        final Map<Integer, Object> results = new HashMap<Integer, Object>();
+
+        MergeTask(String function, ObjectInspector[] inputOIs, boolean combine, int partitions) throws Exception {
+            super(new AggregationPipeline(function, inputOIs, true), partitions);
+            this.combine = combine;
+        }
+
+        @Override
+        void run() throws Exception {
+            Collections.sort(input, BY_GROUP);
+            GenericUDAFEvaluator eval = combine ? pipeline.partial2 : pipeline.finalEval;
+            AggregationBuffer agg = eval.getNewAggregationBuffer();
+            int n = input.size();
+            int i = 0;
+            while (i < n) {
+                int group = input.get(i).group;
+                eval.reset(agg);
+                for (; i < n && input.get(i).group == group; i++) {
+                    eval.merge(agg, pipeline.receive(input.get(i).bytes));
+                    peakBufferBytes = Math.max(peakBufferBytes, estimate(agg));
+                }
+                if (combine) {
+                    emit(group, (byte[]) pipeline.shipCombined(eval.terminatePartial(agg)));
+                } else {
+                    results.put(group, ObjectInspectorUtils.copyToStandardJavaObject(
+                            eval.terminate(agg), pipeline.finalOI));
+                    recordsOut++;
+                }
+            }
+            recordsIn = n;
+        }
+    }
+
+    private final String function;
+    private final Object[][] data;
+    private final int[] groups;
+    private final ObjectInspector[] javaOIs;
+    private final boolean lazyInput;
+
+    ShuffleSimulator(String function, Object[][] data, int[] groups, ObjectInspector[] javaOIs, boolean lazyInput) {
+        this.function = function;
+        this.data = data;
+        this.groups = groups;
+        this.javaOIs = javaOIs;
+        this.lazyInput = lazyInput;
+    }
+
+    /**
+     * 单线程 COMPLETE 模式的结果，作为校验的基准。
+     */
+    Map<Integer, Object> reference() throws Exception {
+        AggregationPipeline pipeline = new AggregationPipeline(function, javaOIs, false);
+        GenericUDAFEvaluator eval = pipeline.complete;
+        Map<Integer, AggregationBuffer> buffers = new HashMap<Integer, AggregationBuffer>();
+        for (int i = 0; i < data.length; i++) {
+            AggregationBuffer agg = buffers.get(groups[i]);
+            if (agg == null) {
+                agg = eval.getNewAggregationBuffer();
+                buffers.put(groups[i], agg);
+            }
+            eval.iterate(agg, data[i]);
+        }
+        Map<Integer, Object> results = new HashMap<Integer, Object>();
+        for (Map.Entry<Integer, AggregationBuffer> entry : buffers.entrySet()) {
+            results.put(entry.getKey(), ObjectInspectorUtils.copyToStandardJavaObject(
+                    eval.terminate(entry.getValue()), pipeline.completeOI));
+        }
+        return results;
+    }
+
+    /**
+     * 跑一次完整的作业，打印各阶段的统计。
+     *
+     * @return 和基准不一致的分组个数
+     */
+    int run(int mappers, int combiners, int reducers, Map<Integer, Object> expected) throws Exception {
+        // 准备工作（切分输入、序列化、初始化 evaluator）不计入阶段耗时
+        List<MapTask> maps = new ArrayList<MapTask>(mappers);
+        int slice = (data.length + mappers - 1) / mappers;
+        for (int m = 0; m < mappers; m++) {
+            int from = Math.min(m * slice, data.length);
+            int to = Math.min(from + slice, data.length);
+            RowSource rows = new RowSource(Arrays.copyOfRange(data, from, to), javaOIs, lazyInput);
+            maps.add(new MapTask(function, rows, groups, from, reducers));
+        }
+        List<Stage> stages = new ArrayList<Stage>();
+        stages.add(execute("map", maps));
+        List<? extends Task> upstream = maps;
+
+        if (combiners > 0) {
+            List<MergeTask> combines = new ArrayList<MergeTask>(combiners);
+            for (int c = 0; c < combiners; c++) {
+                combines.add(new MergeTask(function, javaOIs, true, reducers));
+            }
+            for (int m = 0; m < mappers; m++) {
+                for (List<ShuffleRecord> partition : maps.get(m).output) {
+                    combines.get(m % combiners).input.addAll(partition);
+                }
+            }
+            stages.add(execute("combine", combines));
+            upstream = combines;
+        }
+
+        List<MergeTask> reduces = new ArrayList<MergeTask>(reducers);
+        for (int r = 0; r < reducers; r++) {
+            MergeTask reduce = new MergeTask(function, javaOIs, false, 0);
+            for (Task task : upstream) {
+                reduce.input.addAll(task.output.get(r));
+            }
+            reduces.add(reduce);
+        }
+        stages.add(execute("reduce", reduces));
+
+        Map<Integer, Object> actual = new HashMap<Integer, Object>();
+        for (MergeTask reduce : reduces) {
+            actual.putAll(reduce.results);
+        }
+        int produced = actual.size();
+        int mismatches = 0;
+        for (Map.Entry<Integer, Object> entry : expected.entrySet()) {
+            if (!actual.containsKey(entry.getKey()) || !same(entry.getValue(), actual.remove(entry.getKey()))) {
+                mismatches++;
+            }
+        }
+        // 基准里没有的分组
+        mismatches += actual.size();
+
+        System.out.printf("mappers=%d combiners=%d reducers=%d: %d groups, %d mismatches%n",
+                mappers, combiners, reducers, produced, mismatches);
+        System.out.printf("  %-8s %6s %10s %12s %12s %14s %16s %16s%n", "stage", "tasks", "wall ms",
+                "records in", "records out", "shuffle bytes", "peak buf/task", "peak buf sum");
+        for (Stage stage : stages) {
+            stage.print();
+        }
+        return mismatches;
+    }
+
+    static class Stage {
+        final String name;
+        final List<? extends Task> tasks;
+        final long wallNanos;
+
+        Stage(String name, List<? extends Task> tasks, long wallNanos) {
+            this.name = name;
+            this.tasks = tasks;
+            this.wallNanos = wallNanos;
+        }
+
+        void print() {
+            long in = 0;
+            long out = 0;
+            long bytes = 0;
+            long maxPeak = 0;
+            long sumPeak = 0;
+            for (Task task : tasks) {
+                in += task.recordsIn;
+                out += task.recordsOut;
+                bytes += task.shuffleBytes;
+                maxPeak = Math.max(maxPeak, task.peakBufferBytes);
+                sumPeak += task.peakBufferBytes;
+            }
+            boolean estimable = tasks.get(0).estimable;
+            System.out.printf("  %-8s %6d %10.1f %12d %12d %14d %16s %16s%n", name, tasks.size(), wallNanos / 1e6,
+                    in, out, bytes, estimable ? String.valueOf(maxPeak) : "n/a", estimable ? String.valueOf(sumPeak) : "n/a");
+        }
+    }
+
+    /* 每个 task 一个线程，阶段耗时是从提交到最后一个 task 结束 */
+    private static Stage execute(String name, List<? extends Task> tasks) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(tasks.size());
+        try {
+            long start = System.nanoTime();
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+            return new Stage(name, tasks, System.nanoTime() - start);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * 比较两个标准 Java 对象。double 允许舍入误差：不同的 merge 顺序会改变浮点数的累加顺序。
+     * struct 只比较第一列：maxrow 在键相同时保留先到的行，merge 顺序不同时其余列可能来自不同的行。
+     */
+    static boolean same(Object expected, Object actual) {
+        if (expected instanceof Double && actual instanceof Double) {
+            double e = (Double) expected;
+            double a = (Double) actual;
+            return e == a || Math.abs(e - a) <= 1e-9 * Math.max(Math.abs(e), Math.abs(a));
+        }
+        if (expected instanceof List && actual instanceof List) {
+            List<?> e = (List<?>) expected;
+            List<?> a = (List<?>) actual;
+            return e.size() == a.size() && (e.isEmpty() || same(e.get(0), a.get(0)));
+        }
+        return expected == null ? actual == null : expected.equals(actual);
+    }
+
+    private static int[] ints(String list) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<String, String>(DEFAULTS);
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0 || !DEFAULTS.containsKey(arg.substring(0, eq))) {
+                System.err.println("Unknown argument " + arg + ", expected key=value with key in " + DEFAULTS.keySet());
+                System.exit(2);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        System.out.println(options);
+
+        int rows = Integer.parseInt(options.get("rows"));
+        int width = Integer.parseInt(options.get("width"));
+        long seed = Long.parseLong(options.get("seed"));
+        int[] groups = Inputs.groups(rows, Integer.parseInt(options.get("groups")),
+                Double.parseDouble(options.get("groupSkew")), seed);
+        double[] keys = Inputs.doubles(rows, Integer.parseInt(options.get("cardinality")),
+                Double.parseDouble(options.get("skew")), seed + 1);
+        Object[][] data = Inputs.rows(keys, width, seed + 2);
+        ObjectInspector[] javaOIs = new ObjectInspector[width];
+        javaOIs[0] = PrimitiveObjectInspectorFactory.javaDoubleObjectInspector;
+        for (int i = 1; i < width; i++) {
+            javaOIs[i] = PrimitiveObjectInspectorFactory.javaStringObjectInspector;
+        }
+
+        ShuffleSimulator simulator = new ShuffleSimulator(options.get("function"), data, groups, javaOIs,
+                "lazybinary".equals(options.get("input")));
+        Map<Integer, Object> expected = simulator.reference();
+
+        int failures = 0;
+        for (int mappers : ints(options.get("mappers"))) {
+            for (int combiners : ints(options.get("combiners"))) {
+                for (int reducers : ints(options.get("reducers"))) {
+                    failures += simulator.run(mappers, combiners, reducers, expected);
+                }
+            }
+        }
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * map_count、maxrow、fp_avg 共用的计数器，通过 MapredContext 的 Reporter 发布成 Hadoop 作业计数器，
+ * 每个函数一个计数器组（组名就是函数名），可以在作业页面上按 task 查看聚合行为。
+ *
+ * 默认关闭：只有 set udaf.demo.metrics.enabled=true 时 {@link #create(MapredContext, String)} 才返回实例，
+ * 否则返回 null，热路径上只多一次 null 判断。
+ * 热路径只累加本地字段，由 {@link #maybeFlush()} 和 {@link #flush()} 批量推送给 Reporter。
+ * 一个实例只属于一个 evaluator，不是线程安全的。
+ */
+public class AggregationMetrics {
+
+    public static final String ENABLED_KEY = "udaf.demo.metrics.enabled";
+
+    static final String ROWS_ITERATED = "ROWS_ITERATED";
+    static final String MERGES = "MERGES";
+    static final String NEW_MAX = "NEW_MAX";
+    static final String DISTINCT_KEYS = "DISTINCT_KEYS";
+    static final String PEAK_BUFFER_BYTES = "PEAK_BUFFER_BYTES";
+    static final String SPILLS = "SPILLS";
+    static final String SPILLED_BYTES = "SPILLED_BYTES";
+    static final String CACHE_HITS = "CACHE_HITS";
+    static final String CACHE_MISSES = "CACHE_MISSES";
+
+    /* 本地累计了这么多次操作后，在分组结束时推送一次 */
+    private static final long FLUSH_INTERVAL = 1 << 16;
+
+    private final String group;
+    private final Reporter reporter;
+
+    long rowsIterated;
+    long merges;
+    long newMax;
+    long distinctKeys;
+    long spills;
+    long spilledBytes;
+    long cacheHits;
+    long cacheMisses;
+    private long peakBufferBytes;
+    private long reportedPeakBufferBytes;
+
+    AggregationMetrics(String group, Reporter reporter) {
+        this.group = group;
+        this.reporter = reporter;
+    }
+
+    /**
+     * 在 evaluator 或 UDF 的 configure(MapredContext) 中调用。
+     *
+     * @param context 本地模式下可能为 null
+     * @param group   计数器组名，一般是函数名
+     * @return 未开启或拿不到 Reporter 时返回 null
+     */
+    public static AggregationMetrics create(MapredContext context, String group) {
+        if (context == null) {
+            return null;
+        }
+        JobConf conf = context.getJobConf();
+        Reporter reporter = context.getReporter();
+        if (conf == null || reporter == null || !conf.getBoolean(ENABLED_KEY, false)) {
+            return null;
+        }
+        return new AggregationMetrics(group, reporter);
+    }
+
+    public void updatePeakBufferBytes(long bytes) {
+        if (bytes > peakBufferBytes) {
+            peakBufferBytes = bytes;
+        }
+    }
+
+    /**
+     * 在分组结束时调用，累计的操作足够多时才推送。
+     */
+    public void maybeFlush() {
+        if (rowsIterated + merges >= FLUSH_INTERVAL) {
+            flush();
+        }
+    }
+
+    /**
+     * 把本地累计值推送给 Reporter 并清零。Hadoop 计数器只能累加，所以峰值按增量上报。
+     */
+    public void flush() {
+        incr(ROWS_ITERATED, rowsIterated);
+        incr(MERGES, merges);
+        incr(NEW_MAX, newMax);
+        incr(DISTINCT_KEYS, distinctKeys);
+        incr(SPILLS, spills);
+        incr(SPILLED_BYTES, spilledBytes);
+        incr(CACHE_HITS, cacheHits);
+        incr(CACHE_MISSES, cacheMisses);
+        incr(PEAK_BUFFER_BYTES, peakBufferBytes - reportedPeakBufferBytes);
+        reportedPeakBufferBytes = peakBufferBytes;
+        rowsIterated = 0;
+        merges = 0;
+        newMax = 0;
+        distinctKeys = 0;
+        spills = 0;
+        spilledBytes = 0;
+        cacheHits = 0;
+        cacheMisses = 0;
+    }
+
+    private void incr(String counter, long amount) {
+        if (amount != 0) {
+            reporter.incrCounter(group, counter, amount);
+        }
+    }
+}
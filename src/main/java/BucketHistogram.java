@@ -0,0 +1,161 @@
+import org.apache.hadoop.hive.ql.util.JavaDataModel;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * map_count(expr, min, max, resolution) 的计数结构：把 [min, max] 按 resolution 量化成固定个数的桶，
+ * 第 i 个桶代表 min + i * resolution，值落到离它最近的桶里。
+ * 每个桶一个 long 计数，add() 只有一次乘法和一次数组自增；范围外的值（包括 NaN）按原值记在溢出表里。
+ * 内存只由桶数决定，合并就是逐个桶相加。
+ *
+ * 编码格式：[min][max][resolution]（各 8 字节）[非零桶的 CountRun，键是桶下标][溢出表的 CountRun]。
+ * 桶下标是升序的，CountRun 的差值编码相当于对连续的空桶做了游程编码。
+ */
+public class BucketHistogram {
+
+    /* 每个分组的桶数上限，对应 8MB 的计数数组 */
+    static final int MAX_BUCKETS = 1 << 20;
+
+    private final double min;
+    private final double max;
+    private final double resolution;
+    private final double scale;
+    private final long[] buckets;
+    private final LongCountTable overflow = new LongCountTable();
+
+    public BucketHistogram(double min, double max, double resolution) {
+        this.min = min;
+        this.max = max;
+        this.resolution = resolution;
+        this.scale = 1 / resolution;
+        this.buckets = new long[(int) bucketCount(min, max, resolution)];
+    }
+
+    /**
+     * @return 给定参数需要的桶数；参数不合法时返回 -1
+     */
+    static long bucketCount(double min, double max, double resolution) {
+        if (!(resolution > 0) || !(max >= min) || Double.isInfinite(max - min)) {
+            return -1;
+        }
+        long count = (long) ((max - min) * (1 / resolution) + 0.5) + 1;
+        // 四舍五入可能多出一个桶，它的中心会超过 max，和溢出表里大于 max 的值用同一个键
+        if (count > 1 && min + (count - 1) * resolution > max) {
+            count--;
+        }
+        return count;
+    }
+
+    public void add(double d) {
+        if (d >= min && d <= max) {
+            // 最后一个桶的中心可能小于 max，四舍五入到它后面的值也算在最后一个桶里
+            buckets[Math.min((int) ((d - min) * scale + 0.5), buckets.length - 1)]++;
+        } else {
+            overflow.add(LongCountTable.fromDouble(d), 1);
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(buckets, 0L);
+        overflow.clear();
+    }
+
+    /**
+     * @return 所有非零桶和溢出值的游标，键都是 {@link LongCountTable#fromDouble(double)} 转换后的 long
+     */
+    public CountCursor cursor() {
+        return new CountCursor() {
+            private int bucket = -1;
+            private final CountCursor overflowCursor = overflow.cursor();
+            private boolean inOverflow;
+
+            public boolean next() {
+                if (!inOverflow) {
+                    while (++bucket < buckets.length) {
+                        if (buckets[bucket] != 0) {
+                            return true;
+                        }
+                    }
+                    inOverflow = true;
+                }
+                return overflowCursor.next();
+            }
+
+            public long key() {
+                return inOverflow ? overflowCursor.key() : LongCountTable.fromDouble(min + bucket * resolution);
+            }
+
+            public long count() {
+                return inOverflow ? overflowCursor.count() : buckets[bucket];
+            }
+        };
+    }
+
+    public byte[] encode() {
+        int nonZero = 0;
+        for (long count : buckets) {
+            if (count != 0) {
+                nonZero++;
+            }
+        }
+        CountRun.Writer writer = new CountRun.Writer();
+        writer.writeDouble(min);
+        writer.writeDouble(max);
+        writer.writeDouble(resolution);
+        writer.startRun(nonZero);
+        for (int i = 0; i < buckets.length; i++) {
+            if (buckets[i] != 0) {
+                writer.add(i, buckets[i]);
+            }
+        }
+        long[] keys = overflow.sortedKeys();
+        writer.startRun(keys.length);
+        for (long key : keys) {
+            writer.add(key, overflow.get(key));
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * 按编码的头部创建一个空的直方图，不改变 buf 的 position。
+     */
+    public static BucketHistogram create(ByteBuffer buf) {
+        int p = buf.position();
+        return new BucketHistogram(buf.getDouble(p), buf.getDouble(p + 8), buf.getDouble(p + 16));
+    }
+
+    /**
+     * 把编码的计数逐个桶加到这个直方图上。
+     *
+     * @throws IllegalArgumentException 编码的 min/max/resolution 和这个直方图不同
+     */
+    public void merge(ByteBuffer buf) {
+        buf = buf.duplicate();
+        double otherMin = buf.getDouble();
+        double otherMax = buf.getDouble();
+        double otherResolution = buf.getDouble();
+        if (otherMin != min || otherMax != max || otherResolution != resolution) {
+            throw new IllegalArgumentException("Cannot merge histogram (" + otherMin + ", " + otherMax + ", "
+                    + otherResolution + ") into (" + min + ", " + max + ", " + resolution + ")");
+        }
+        CountRun.Reader reader = new CountRun.Reader(buf);
+        while (reader.next()) {
+            buckets[(int) reader.key()] += reader.count();
+        }
+        buf.position(reader.position());
+        reader = new CountRun.Reader(buf);
+        while (reader.next()) {
+            overflow.add(reader.key(), reader.count());
+        }
+    }
+
+    /**
+     * @return 占用的堆内存字节数，供 AggregationBuffer.estimate() 使用
+     */
+    public int estimate() {
+        JavaDataModel model = JavaDataModel.get();
+        return model.object() + model.ref() * 2 + model.primitive2() * 4
+                + model.lengthForLongArrayOfSize(buckets.length) + overflow.estimate();
+    }
+}
@@ -0,0 +1,190 @@
+import org.apache.hadoop.hive.ql.util.JavaDataModel;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 以字节串为键、long 为计数值的开放寻址哈希表（线性探测），用于 string 类型的 map_count。
+ * 键的字节依次追加到一个共用的 byte[] 里，每个条目只记录偏移、长度、哈希和计数，
+ * 所以 iterate() 可以直接用 Text 的字节查找和插入，不需要为每一行创建 String。
+ * 条目按插入顺序编号，槽位里存的是条目编号 + 1，0 表示空槽。
+ */
+public class BytesCountTable {
+
+    private static final int MIN_CAPACITY = 16;
+
+    /* 装载因子取 0.5，和 LongCountTable 一样 */
+    private static final int LOAD_FACTOR_SHIFT = 1;
+
+    private byte[] bytes = new byte[256];
+    private int bytesLength;
+
+    private int[] offsets = new int[MIN_CAPACITY >>> LOAD_FACTOR_SHIFT];
+    private int[] lengths = new int[MIN_CAPACITY >>> LOAD_FACTOR_SHIFT];
+    private int[] hashes = new int[MIN_CAPACITY >>> LOAD_FACTOR_SHIFT];
+    private long[] counts = new long[MIN_CAPACITY >>> LOAD_FACTOR_SHIFT];
+    private int size;
+
+    private int[] slots;
+    private int mask;
+
+    public BytesCountTable() {
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        slots = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * 将 key 的计数加上 delta，key 不存在时把它的字节拷贝进表里。
+     *
+     * @param key
+     * @param start
+     * @param length
+     * @param delta  必须大于 0
+     */
+    public void add(byte[] key, int start, int length, long delta) {
+        int hash = hash(key, start, length);
+        int slot = hash & mask;
+        int entry;
+        while ((entry = slots[slot]) != 0) {
+            entry--;
+            if (hashes[entry] == hash && lengths[entry] == length
+                    && equals(bytes, offsets[entry], key, start, length)) {
+                counts[entry] += delta;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == counts.length) {
+            int capacity = size << 1;
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+        if (bytesLength + length > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length << 1, bytesLength + length));
+        }
+        System.arraycopy(key, start, bytes, bytesLength, length);
+        offsets[size] = bytesLength;
+        lengths[size] = length;
+        hashes[size] = hash;
+        counts[size] = delta;
+        bytesLength += length;
+        slots[slot] = ++size;
+        if (size > slots.length >>> LOAD_FACTOR_SHIFT) {
+            rehash(slots.length << 1);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 清空表。已经扩得很大时直接释放，避免一个大分组之后一直占着内存。
+     */
+    public void clear() {
+        if (slots.length > MIN_CAPACITY << 4) {
+            allocate(MIN_CAPACITY);
+            int entries = MIN_CAPACITY >>> LOAD_FACTOR_SHIFT;
+            offsets = new int[entries];
+            lengths = new int[entries];
+            hashes = new int[entries];
+            counts = new long[entries];
+            bytes = new byte[256];
+        } else {
+            Arrays.fill(slots, 0);
+        }
+        size = 0;
+        bytesLength = 0;
+    }
+
+    /* 条目遍历：for (int i = 0; i < size(); i++) ... keyBytes() 在下一次 add() 之前有效 */
+    public byte[] keyBytes() {
+        return bytes;
+    }
+
+    public int offsetAt(int entry) {
+        return offsets[entry];
+    }
+
+    public int lengthAt(int entry) {
+        return lengths[entry];
+    }
+
+    public long countAt(int entry) {
+        return counts[entry];
+    }
+
+    /**
+     * 编码成部分聚合结果。格式：[条目数 n]([键长度][键的字节][计数])...，整数都是 varint，条目没有排序。
+     */
+    public byte[] toRun() {
+        CountRun.Writer writer = new CountRun.Writer(size);
+        for (int i = 0; i < size; i++) {
+            writer.writeVLong(lengths[i]);
+            writer.writeBytes(bytes, offsets[i], lengths[i]);
+            writer.writeVLong(counts[i]);
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * 把 {@link #toRun()} 编码的计数加到表里。键直接从 run 里查找，只有新键才会被拷贝。
+     */
+    public void addRun(byte[] run, int start, int length) {
+        ByteBuffer buf = ByteBuffer.wrap(run, start, length);
+        int n = (int) CountRun.readVLong(buf);
+        for (int i = 0; i < n; i++) {
+            int keyLength = (int) CountRun.readVLong(buf);
+            int keyStart = buf.position();
+            buf.position(keyStart + keyLength);
+            add(run, keyStart, keyLength, CountRun.readVLong(buf));
+        }
+    }
+
+    /**
+     * @return 表占用的堆内存字节数，供 AggregationBuffer.estimate() 使用
+     */
+    public int estimate() {
+        JavaDataModel model = JavaDataModel.get();
+        return model.object() + model.ref() * 6 + model.primitive1() * 3
+                + model.lengthForByteArrayOfSize(bytes.length)
+                + model.lengthForIntArrayOfSize(slots.length)
+                + model.lengthForIntArrayOfSize(counts.length) * 3
+                + model.lengthForLongArrayOfSize(counts.length);
+    }
+
+    private void rehash(int capacity) {
+        allocate(capacity);
+        for (int i = 0; i < size; i++) {
+            int slot = hashes[i] & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = i + 1;
+        }
+    }
+
+    private static boolean equals(byte[] a, int aStart, byte[] b, int bStart, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[aStart + i] != b[bStart + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int hash(byte[] key, int start, int length) {
+        long h = 1;
+        for (int i = start; i < start + length; i++) {
+            h = 31 * h + key[i];
+        }
+        return LongCountTable.hash(h);
+    }
+}
@@ -0,0 +1,12 @@
+/**
+ * 计数结果的游标，统一遍历 LongCountTable、单个 run 以及多个 run 归并后的结果。
+ * 用法：while (cursor.next()) { cursor.key(); cursor.count(); }
+ */
+public interface CountCursor {
+
+    boolean next();
+
+    long key();
+
+    long count();
+}
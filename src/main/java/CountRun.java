@@ -0,0 +1,197 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * 按键升序排列的计数 run 的二进制编码，用作 map_count 的部分聚合格式（binary 类型）。
+ *
+ * 格式：[条目数 n][第一个键][第一个计数][键增量][计数]...
+ * 所有整数都是 7 位一组的无符号 varint，第一个键先做 zigzag。
+ * 键是升序的，后续键只存与前一个键的差值，所以量化过的传感器数值通常 1~2 个字节就够了。
+ */
+public class CountRun {
+
+    private CountRun() {
+    }
+
+    /**
+     * 将表中的计数排序后编码。
+     */
+    public static byte[] encode(LongCountTable table) {
+        long[] keys = table.sortedKeys();
+        Writer writer = new Writer(keys.length);
+        for (long key : keys) {
+            writer.add(key, table.get(key));
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * 编码一个已经按键升序排列的游标。不知道条目数，所以先编码正文，最后再把条目数写在前面。
+     */
+    public static byte[] encode(CountCursor cursor) {
+        Writer body = new Writer();
+        int size = 0;
+        while (cursor.next()) {
+            body.add(cursor.key(), cursor.count());
+            size++;
+        }
+        Writer writer = new Writer(size);
+        writer.writeBytes(body.buf, 0, body.len);
+        return writer.toByteArray();
+    }
+
+    static class Writer {
+        private byte[] buf = new byte[64];
+        private int len;
+        private long prev;
+        private boolean first = true;
+
+        Writer() {
+        }
+
+        Writer(int size) {
+            startRun(size);
+        }
+
+        /* 在同一个缓冲区里接着写下一个 run */
+        void startRun(int size) {
+            writeVLong(size);
+            first = true;
+        }
+
+        void add(long key, long count) {
+            if (first) {
+                writeVLong((key << 1) ^ (key >> 63));
+                first = false;
+            } else {
+                writeVLong(key - prev);
+            }
+            writeVLong(count);
+            prev = key;
+        }
+
+        /**
+         * 固定写 5 个字节的 varint，可以表示任何非负 int。条目数事先不知道时先写一个占位，
+         * 写完正文后再回填，Reader 读非最短的 varint 没有问题。
+         */
+        void writePaddedVInt(int v) {
+            ensure(5);
+            for (int i = 0; i < 4; i++) {
+                buf[len++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[len++] = (byte) v;
+        }
+
+        void writeVLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[len++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[len++] = (byte) v;
+        }
+
+        /* 8 字节大端，和 ByteBuffer.getDouble() 对应 */
+        void writeDouble(double d) {
+            long v = Double.doubleToLongBits(d);
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[len++] = (byte) (v >>> shift);
+            }
+        }
+
+        void writeBytes(byte[] b, int off, int n) {
+            ensure(n);
+            System.arraycopy(b, off, buf, len, n);
+            len += n;
+        }
+
+        private void ensure(int n) {
+            if (len + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, len + n));
+            }
+        }
+
+        int length() {
+            return len;
+        }
+
+        /* 把已写的字节写到 channel 并清空缓冲区，差值编码的状态保留，可以接着写同一个 run */
+        void drainTo(WritableByteChannel channel) throws IOException {
+            ByteBuffer bytes = ByteBuffer.wrap(buf, 0, len);
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            len = 0;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, len);
+        }
+    }
+
+    /**
+     * 顺序解码一个 run。ByteBuffer 可以是堆内数组，也可以是 MappedByteBuffer，
+     * 从它当前的 position 开始读，不会改动调用方的 position。
+     */
+    public static class Reader implements CountCursor {
+        private final ByteBuffer buf;
+        private final int size;
+        private int read;
+        private long key;
+        private long count;
+
+        public Reader(ByteBuffer buf) {
+            this.buf = buf.duplicate();
+            this.size = (int) readVLong();
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean next() {
+            if (read == size) {
+                return false;
+            }
+            long v = readVLong();
+            key = read == 0 ? (v >>> 1) ^ -(v & 1) : key + v;
+            count = readVLong();
+            read++;
+            return true;
+        }
+
+        public long key() {
+            return key;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        /* 已读到的位置，读完所有条目后就是这个 run 结尾的下一个字节 */
+        int position() {
+            return buf.position();
+        }
+
+        private long readVLong() {
+            return CountRun.readVLong(buf);
+        }
+    }
+
+    /* 从 buf 的当前 position 读一个 varint */
+    static long readVLong(ByteBuffer buf) {
+        long v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf.get();
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return v;
+    }
+}
@@ -0,0 +1,92 @@
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * 多个升序 run 的 k 路归并，相同的键把计数相加后只输出一次。
+ * 用最小堆维护各个 run 的当前键，每个条目只比较 O(log k) 次，不需要任何哈希插入。
+ * 参与归并的也可以是其它按键升序的游标，比如 {@link LongCountTable#sortedCursor()}。
+ */
+public class CountRunMerger implements CountCursor {
+
+    private final CountCursor[] readers;
+    private final int[] heap;
+    private int heapSize;
+    private long key;
+    private long count;
+
+    public CountRunMerger(List<ByteBuffer> runs) {
+        this(readers(runs));
+    }
+
+    /**
+     * @param cursors 每个游标都必须按键升序，同一个游标里的键不能重复
+     */
+    public CountRunMerger(CountCursor[] cursors) {
+        readers = cursors;
+        heap = new int[cursors.length];
+        for (int i = 0; i < readers.length; i++) {
+            if (readers[i].next()) {
+                heap[heapSize++] = i;
+            }
+        }
+        for (int i = (heapSize >>> 1) - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    private static CountCursor[] readers(List<ByteBuffer> runs) {
+        CountCursor[] readers = new CountCursor[runs.size()];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new CountRun.Reader(runs.get(i));
+        }
+        return readers;
+    }
+
+    public boolean next() {
+        if (heapSize == 0) {
+            return false;
+        }
+        key = readers[heap[0]].key();
+        count = 0;
+        while (heapSize > 0 && readers[heap[0]].key() == key) {
+            CountCursor top = readers[heap[0]];
+            count += top.count();
+            if (!top.next()) {
+                heap[0] = heap[--heapSize];
+            }
+            // 读完的游标不能再调用 key()
+            if (heapSize > 0) {
+                siftDown(0);
+            }
+        }
+        return true;
+    }
+
+    public long key() {
+        return key;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    private void siftDown(int i) {
+        int r = heap[i];
+        long k = readers[r].key();
+        while (true) {
+            int child = (i << 1) + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && readers[heap[child + 1]].key() < readers[heap[child]].key()) {
+                child++;
+            }
+            if (readers[heap[child]].key() >= k) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = r;
+    }
+}
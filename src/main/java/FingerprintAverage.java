@@ -0,0 +1,142 @@
+import java.util.Arrays;
+
+/**
+ * fp_avg 的核心计算：按计数从大到小取出覆盖总量 80% 的值，求这部分的加权平均。
+ * 最后一个被取到的值只取到刚好凑满 80% 的数量。
+ *
+ * 键值对先读进可复用的原始类型数组，然后对下标建一个按计数排序的大顶堆（O(n)），
+ * 只弹出凑满 80% 所需的 k 个元素（O(k log n)），不需要整体排序，也不会为每个条目创建对象。
+ * 一个实例在多行之间复用，不是线程安全的。
+ */
+public class FingerprintAverage {
+
+    /* 取总量的比例 */
+    static final double MASS_RATIO = 0.8;
+
+    private double[] keys = new double[16];
+    private long[] counts = new long[16];
+    private int[] heap = new int[16];
+    private int size;
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void add(double key, long count) {
+        if (size == keys.length) {
+            int capacity = size << 1;
+            keys = Arrays.copyOf(keys, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            heap = new int[capacity];
+        }
+        keys[size] = key;
+        counts[size] = count;
+        size++;
+    }
+
+    /**
+     * @return 按顺序对所有键值对求的哈希，同样的键值对顺序不同时哈希也不同
+     */
+    public int contentHash() {
+        long h = size;
+        for (int i = 0; i < size; i++) {
+            h = (h ^ Double.doubleToLongBits(keys[i])) * 0x9E3779B97F4A7C15L;
+            h = (h ^ counts[i]) * 0x9E3779B97F4A7C15L;
+        }
+        return LongCountTable.hash(h);
+    }
+
+    /**
+     * @return 当前的键值对和给定的键值对是否按顺序完全相同，键按位比较
+     */
+    public boolean contentEquals(double[] otherKeys, long[] otherCounts) {
+        if (otherKeys.length != size) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (counts[i] != otherCounts[i]
+                    || Double.doubleToLongBits(keys[i]) != Double.doubleToLongBits(otherKeys[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public double[] copyKeys() {
+        return Arrays.copyOf(keys, size);
+    }
+
+    public long[] copyCounts() {
+        return Arrays.copyOf(counts, size);
+    }
+
+    /**
+     * @return 当前所有键值对的 80% 加权平均；必须至少有一个键值对
+     */
+    public double compute() {
+        // 只有一个值时，就不需要排序了
+        if (size == 1) {
+            return keys[0];
+        }
+
+        // 值的总和
+        long sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += counts[i];
+        }
+
+        // 对下标建大顶堆
+        for (int i = 0; i < size; i++) {
+            heap[i] = i;
+        }
+        int heapSize = size;
+        for (int i = (heapSize >>> 1) - 1; i >= 0; i--) {
+            siftDown(i, heapSize);
+        }
+
+        // 取 80% 的量
+        long sum_8 = (long) Math.ceil(sum * MASS_RATIO);
+        long last = sum_8;
+        double result = 0;
+        while (last > 0 && heapSize > 0) {
+            int top = heap[0];
+            double k = keys[top];
+            long v = counts[top];
+            if (v <= last) {
+                result += v * k;
+                last -= v;
+            } else {
+                result += last * k;
+                break;
+            }
+            heap[0] = heap[--heapSize];
+            siftDown(0, heapSize);
+        }
+
+        return result / sum_8;
+    }
+
+    private void siftDown(int i, int heapSize) {
+        int index = heap[i];
+        long count = counts[index];
+        while (true) {
+            int child = (i << 1) + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && counts[heap[child + 1]] > counts[heap[child]]) {
+                child++;
+            }
+            if (counts[heap[child]] <= count) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = index;
+    }
+}
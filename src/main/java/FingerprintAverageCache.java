@@ -0,0 +1,176 @@
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.util.JavaDataModel;
+import org.apache.hadoop.mapred.JobConf;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * fp_avg 的结果缓存，按 LRU 淘汰，同时受条目数和字节数两个上限约束。
+ * 星型模型的 join 里同一个维度行的 map 会随着事实表的行重复出现很多次，
+ * 命中时只需要把键值对读进数组并算一次哈希，不需要再建堆计算。
+ *
+ * 以键值对的内容哈希为键，命中后还会逐个比较键值对，哈希冲突不会返回错误的结果。
+ * 哈希和比较都按 map 的遍历顺序进行，同一个值序列化后的顺序是固定的，顺序不同只会导致不命中。
+ *
+ * 默认关闭：只有 set udaf.demo.fp_avg.cache.entries 为正数时 {@link #create(MapredContext)} 才返回实例。
+ * 一个实例只属于一个 UDF 实例，不是线程安全的。
+ */
+public class FingerprintAverageCache {
+
+    public static final String ENTRIES_KEY = "udaf.demo.fp_avg.cache.entries";
+    public static final String BYTES_KEY = "udaf.demo.fp_avg.cache.bytes";
+    static final long DEFAULT_BYTES = 64L << 20;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    /* 访问顺序的 LinkedHashMap，遍历时最久没有用过的条目在最前面；条目本身就是键 */
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+    /* get() 时用来查找的键，直接引用 FingerprintAverage 的数组，不拷贝 */
+    private final Probe probe = new Probe();
+    private long bytes;
+
+    long hits;
+    long misses;
+    long evictions;
+
+    FingerprintAverageCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 在 UDF 的 configure(MapredContext) 中调用。
+     *
+     * @param context 本地模式下可能为 null
+     * @return 未开启时返回 null
+     */
+    public static FingerprintAverageCache create(MapredContext context) {
+        if (context == null || context.getJobConf() == null) {
+            return null;
+        }
+        JobConf conf = context.getJobConf();
+        int maxEntries = conf.getInt(ENTRIES_KEY, 0);
+        long maxBytes = conf.getLong(BYTES_KEY, DEFAULT_BYTES);
+        if (maxEntries <= 0 || maxBytes <= 0) {
+            return null;
+        }
+        return new FingerprintAverageCache(maxEntries, maxBytes);
+    }
+
+    /* 缓存的一个结果，键值对是拷贝出来的 */
+    static final class Entry {
+        final int hash;
+        final double[] keys;
+        final long[] counts;
+        final double result;
+        final long bytes;
+
+        Entry(int hash, double[] keys, long[] counts, double result) {
+            this.hash = hash;
+            this.keys = keys;
+            this.counts = counts;
+            this.result = result;
+            JavaDataModel model = JavaDataModel.get();
+            // 条目本身、两个数组，以及 LinkedHashMap 的 Entry
+            this.bytes = model.object() * 2 + model.ref() * 6 + model.primitive2() * 2 + model.primitive1() * 2
+                    + model.lengthForDoubleArrayOfSize(keys.length) + model.lengthForLongArrayOfSize(counts.length);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Probe) {
+                return o.equals(this);
+            }
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry other = (Entry) o;
+            return hash == other.hash && Arrays.equals(keys, other.keys)
+                    && Arrays.equals(counts, other.counts);
+        }
+    }
+
+    /* 查找用的键，HashMap.get() 会调用 probe.equals(条目) */
+    private static final class Probe {
+        int hash;
+        FingerprintAverage average;
+
+        void set(FingerprintAverage average) {
+            this.average = average;
+            this.hash = average.contentHash();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry entry = (Entry) o;
+            return hash == entry.hash && average.contentEquals(entry.keys, entry.counts);
+        }
+    }
+
+    /**
+     * @param average 已经读入键值对、还没有 compute() 的实例
+     * @return 缓存的结果，不命中时返回 null
+     */
+    public Entry get(FingerprintAverage average) {
+        probe.set(average);
+        Entry entry = entries.get(probe);
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        probe.average = null;
+        return entry;
+    }
+
+    /**
+     * 缓存 average 的结果。调用前必须先用同一组键值对调用过 {@link #get} 并且没有命中，这里复用它算好的哈希。
+     * 单个结果超过字节上限时不缓存。
+     */
+    public void put(FingerprintAverage average, double result) {
+        Entry entry = new Entry(probe.hash, average.copyKeys(), average.copyCounts(), result);
+        if (entry.bytes > maxBytes) {
+            return;
+        }
+        Entry old = entries.put(entry, entry);
+        if (old != null) {
+            bytes -= old.bytes;
+        }
+        bytes += entry.bytes;
+        Iterator<Entry> eldest = entries.values().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+            bytes -= eldest.next().bytes;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long bytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "fp_avg cache: " + entries.size() + " entries, " + bytes + " bytes, "
+                + hits + " hits, " + misses + " misses, " + evictions + " evictions";
+    }
+}
@@ -1,49 +1,189 @@
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.common.type.HiveDecimal;
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.plan.ptf.WindowFrameDef;
 import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
-import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.ql.util.JavaDataModel;
+import org.apache.hadoop.hive.serde2.io.HiveDecimalWritable;
 import org.apache.hadoop.hive.serde2.objectinspector.*;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.ByteObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.DoubleObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.HiveDecimalObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.IntObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.ShortObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.hive.serde2.typeinfo.DecimalTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
-import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
 
+import java.io.IOException;
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 
-@Description(name = "map_count", value = "_FUNC_(expr) - Return the map of column counting")
+@Description(name = "map_count", value = "_FUNC_(expr[, min, max, resolution]) - Return the map of column counting",
+        extended = "expr can be double, tinyint, smallint, int, bigint, decimal (precision <= 18) or string; "
+                + "the map keys keep the type of expr.\n"
+                + "With constant min, max and resolution, double values in [min, max] are rounded to the nearest "
+                + "min + i * resolution and counted in a fixed array of buckets; other values are counted as is.")
 public class GenericUDAFMap extends AbstractGenericUDAFResolver {
     static final Log LOG = LogFactory.getLog(GenericUDAFMap.class.getName());
 
+    /* unscaled 值能放进 long 的最大 decimal 精度 */
+    static final int MAX_LONG_DECIMAL_PRECISION = 18;
+
     @Override
     public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters) throws SemanticException {
         // 验证参数个数
+        if (parameters.length == 4) {
+            return getHistogramEvaluator(parameters);
+        }
         if (parameters.length != 1) {
             throw new UDFArgumentTypeException(parameters.length - 1,
-                    "Exactly one argument is expected.");
+                    "Exactly one or four arguments are expected.");
+        }
+        // 验证参数类型，每种类型有自己的 evaluator，按原类型计数，不需要先转成 double
+        if (parameters[0].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            throw new UDFArgumentTypeException(0,
+                    "Only primitive type arguments are accepted but "
+                            + parameters[0].getTypeName() + " is passed.");
         }
-        // 验证参数类型
-        switch (((PrimitiveTypeInfo) parameters[0]).getPrimitiveCategory()) {
+        PrimitiveTypeInfo type = (PrimitiveTypeInfo) parameters[0];
+        switch (type.getPrimitiveCategory()) {
             case DOUBLE:
                 return new GenericUDAFMapEvaluator();
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+                return new GenericUDAFMapLongEvaluator(type);
+            case DECIMAL:
+                if (((DecimalTypeInfo) type).precision() > MAX_LONG_DECIMAL_PRECISION) {
+                    throw new UDFArgumentTypeException(0,
+                            "Only decimal with precision up to " + MAX_LONG_DECIMAL_PRECISION
+                                    + " is accepted but " + type.getTypeName() + " is passed.");
+                }
+                return new GenericUDAFMapDecimalEvaluator((DecimalTypeInfo) type);
+            case STRING:
+                return new GenericUDAFMapStringEvaluator();
             default:
                 throw new UDFArgumentTypeException(0,
-                        "Only numeric type arguments are accepted but "
-                                + parameters[0].getTypeName() + " is passed.");
+                        "Only double, tinyint, smallint, int, bigint, decimal and string type arguments are accepted but "
+                                + type.getTypeName() + " is passed.");
         }
 
     }
 
+    /* map_count(expr, min, max, resolution)，后三个参数是否为常量要到 init() 才能检查 */
+    private GenericUDAFEvaluator getHistogramEvaluator(TypeInfo[] parameters) throws SemanticException {
+        if (parameters[0].getCategory() != ObjectInspector.Category.PRIMITIVE
+                || ((PrimitiveTypeInfo) parameters[0]).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.DOUBLE) {
+            throw new UDFArgumentTypeException(0,
+                    "Only double type arguments are accepted with min, max and resolution but "
+                            + parameters[0].getTypeName() + " is passed.");
+        }
+        for (int i = 1; i < parameters.length; i++) {
+            if (parameters[i].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+                throw new UDFArgumentTypeException(i, "min, max and resolution must be numeric constants.");
+            }
+            switch (((PrimitiveTypeInfo) parameters[i]).getPrimitiveCategory()) {
+                case BYTE:
+                case SHORT:
+                case INT:
+                case LONG:
+                case FLOAT:
+                case DOUBLE:
+                case DECIMAL:
+                    break;
+                default:
+                    throw new UDFArgumentTypeException(i, "min, max and resolution must be numeric constants.");
+            }
+        }
+        return new GenericUDAFMapHistogramEvaluator();
+    }
+
+    /**
+     * double 类型的 map_count，也是所有能无损转换成 long 键的类型的基类：
+     * 子类只需要覆盖 {@link #initInput}、{@link #key}、{@link #outputKeyOI} 和 {@link #outputKey}，
+     * 计数表、部分聚合格式和 merge 都共用。
+     */
     public static class GenericUDAFMapEvaluator extends GenericUDAFEvaluator {
 
-        private PrimitiveObjectInspector inputOI;
-        private MapObjectInspector mapOI;
+        /* FINAL/PARTIAL2 阶段缓存的 run 达到这个数量时先归并成一个，限制归并的路数和内存 */
+        static final int MAX_PENDING_RUNS = 64;
+
+        private transient DoubleObjectInspector inputOI;
+        private transient BinaryObjectInspector partialOI;
+
+        /* 单个分组的计数缓存在堆内超过这么多字节时溢写到本地磁盘，小于等于 0 表示不溢写 */
+        public static final String BUFFER_BYTES_KEY = "udaf.demo.map_count.buffer.bytes";
+        static final long DEFAULT_BUFFER_BYTES = 256L << 20;
+        /* 每个溢写文件要能整个映射成一个 MappedByteBuffer（不超过 2GB），编码后的 run 比内存里的计数小，所以限制预算就够了 */
+        static final long MAX_BUFFER_BYTES = 1L << 30;
+
+        /* 未开启 udaf.demo.metrics.enabled 时为 null */
+        transient AggregationMetrics metrics;
+
+        transient long bufferBytes = DEFAULT_BUFFER_BYTES;
+        /* 这个 evaluator 创建的所有溢写过的缓存，Hive 在 map 端 flush 之后不会 reset 缓存，所以 close() 时统一删除文件 */
+        transient List<SpilledRuns> spills = new ArrayList<SpilledRuns>();
+
+        @Override
+        public void configure(MapredContext mapredContext) {
+            metrics = AggregationMetrics.create(mapredContext, metricsGroup());
+            if (mapredContext != null && mapredContext.getJobConf() != null) {
+                bufferBytes = Math.min(mapredContext.getJobConf().getLong(BUFFER_BYTES_KEY, DEFAULT_BUFFER_BYTES),
+                        MAX_BUFFER_BYTES);
+            }
+        }
+
+        /* 计数器组名，子类复用这个 evaluator 时覆盖 */
+        String metricsGroup() {
+            return "map_count";
+        }
+
+        /* 一个分组输出时记录它的内存占用和不同键的个数 */
+        void recordGroup(MapAgg ma, int distinctKeys) {
+            if (metrics != null) {
+                metrics.updatePeakBufferBytes(ma.estimate());
+                metrics.distinctKeys += distinctKeys;
+                metrics.spills += ma.spillCount();
+                metrics.spilledBytes += ma.spilledBytes();
+                metrics.maybeFlush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (metrics != null) {
+                metrics.flush();
+            }
+            for (SpilledRuns spilled : spills) {
+                spilled.clear();
+            }
+            spills.clear();
+        }
 
         /**
          * 实例化 Evaluator 类的时候调用的，在不同的阶段需要返回不同的 OI。
@@ -67,40 +207,214 @@ public class GenericUDAFMap extends AbstractGenericUDAFResolver {
             super.init(m, parameters);
 
             if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
-                inputOI = (PrimitiveObjectInspector) parameters[0];
+                initInput(parameters[0]);
             } else {
-                assert (parameters[0] instanceof StandardMapObjectInspector);
-                mapOI = (MapObjectInspector) parameters[0];
+                partialOI = (BinaryObjectInspector) parameters[0];
             }
 
+            // 部分聚合结果是编码后的升序 run，见 CountRun
+            if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+                return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+            }
             return ObjectInspectorFactory.getStandardMapObjectInspector(
-                    PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
-                    PrimitiveObjectInspectorFactory.javaIntObjectInspector);
+                    outputKeyOI(),
+                    PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+        }
+
+        /* PARTIAL1/COMPLETE 阶段保存原始输入的 OI */
+        void initInput(ObjectInspector parameter) {
+            inputOI = (DoubleObjectInspector) parameter;
+        }
+
+        /* 把一个非 null 的输入值转换成计数表的键，不同的值必须得到不同的键 */
+        long key(Object p) {
+            return LongCountTable.fromDouble(inputOI.get(p));
         }
 
-        static class MapAgg implements AggregationBuffer {
-            Map<Double, Integer> map = new HashMap<Double, Integer>();
+        /* 最终输出的 map 的键的 OI，FINAL 阶段看不到原始输入的 OI，所以只能依赖 evaluator 自己的状态 */
+        ObjectInspector outputKeyOI() {
+            return PrimitiveObjectInspectorFactory.javaDoubleObjectInspector;
+        }
 
-            void add(Double o) {
-                if (o == null) {
+        /* key() 的逆变换，得到最终输出的 map 的键 */
+        Object outputKey(long key) {
+            return LongCountTable.toDouble(key);
+        }
+
+        /**
+         * 窗口从 n PRECEDING / UNBOUNDED PRECEDING / CURRENT ROW 开始、到 CURRENT ROW / n FOLLOWING 结束时，
+         * 返回增量维护窗口计数的流式 evaluator；其它窗口返回 null，由 Hive 对每一行重新计算。
+         * Hive 只对 ROWS 窗口调用这个方法。
+         */
+        @Override
+        public GenericUDAFEvaluator getWindowingEvaluator(WindowFrameDef wFrmDef) {
+            StreamingFrame frame = StreamingFrame.of(wFrmDef);
+            if (frame == null) {
+                return null;
+            }
+            return new GenericUDAFMapWindowEvaluator(this, frame.preceding, frame.following);
+        }
+
+        /**
+         * 计数缓存，键是 {@link LongCountTable#fromDouble(double)} 转换后的 long，计数用 long 不会溢出。
+         * iterate() 写入 table；merge() 不做哈希插入，只把收到的升序 run 存起来，输出时再做 k 路归并。
+         * 实现 estimate() 后 Hive 的 map 端 hash 聚合能看到真实的内存占用，及时 flush。
+         * 一个分组的不同键太多、堆内占用超过 bufferBytes 时，把 table 和 runs 归并成一个 run 溢写到本地磁盘，
+         * 输出时和内存里剩下的计数一起归并，见 {@link SpilledRuns}。
+         */
+        @AggregationType(estimable = true)
+        static class MapAgg extends AbstractAggregationBuffer {
+            final LongCountTable table = new LongCountTable();
+            final List<ByteBuffer> runs = new ArrayList<ByteBuffer>();
+            long runBytes;
+
+            /* 小于等于 0 表示不溢写 */
+            private final long bufferBytes;
+            /* 第一次溢写时创建，并登记到 evaluator 的 spills 里，evaluator close() 时统一删除文件 */
+            private final List<SpilledRuns> registry;
+            private SpilledRuns spilled;
+            /* table 只有扩容时 estimate() 才会变大，所以只在容量变化后检查内存 */
+            private int checkedCapacity;
+
+            MapAgg(long bufferBytes, List<SpilledRuns> registry) {
+                this.bufferBytes = bufferBytes;
+                this.registry = registry;
+                this.checkedCapacity = table.capacity();
+            }
+
+            void add(long key) throws HiveException {
+                table.add(key, 1);
+                if (table.capacity() != checkedCapacity) {
+                    checkedCapacity = table.capacity();
+                    maybeSpill();
+                }
+            }
+
+            void addRun(byte[] run) throws HiveException {
+                runs.add(ByteBuffer.wrap(run));
+                runBytes += run.length;
+                if (!maybeSpill() && runs.size() >= MAX_PENDING_RUNS) {
+                    compact();
+                }
+            }
+
+            /* 把内存里的 table 和所有 run 归并成一个 run；溢写文件不参与，输出时再和它们一起归并 */
+            void compact() {
+                if (table.size() == 0 && runs.size() <= 1) {
                     return;
                 }
-                if (map.containsKey(o)) {
-                    map.put(o, map.get(o) + 1);
-                } else {
-                    map.put(o, 1);
+                if (table.size() > 0) {
+                    runs.add(ByteBuffer.wrap(CountRun.encode(table)));
+                    table.clear();
+                }
+                byte[] merged = CountRun.encode(new CountRunMerger(runs));
+                runs.clear();
+                runs.add(ByteBuffer.wrap(merged));
+                runBytes = merged.length;
+            }
+
+            /**
+             * 堆内占用超过预算时，把 table 和所有 run 直接归并写到一个新的文件里，不在内存里先编码。
+             *
+             * @return 是否溢写了
+             */
+            private boolean maybeSpill() throws HiveException {
+                if (bufferBytes <= 0 || estimate() <= bufferBytes) {
+                    return false;
+                }
+                if (spilled == null) {
+                    spilled = new SpilledRuns();
+                    registry.add(spilled);
+                }
+                try {
+                    spilled.spill(merged(Collections.<ByteBuffer>emptyList()));
+                } catch (IOException e) {
+                    throw new HiveException("map_count failed to spill " + table.size() + " keys and "
+                            + runs.size() + " runs to local disk", e);
+                }
+                table.clear();
+                runs.clear();
+                runBytes = 0;
+                checkedCapacity = table.capacity();
+                return true;
+            }
+
+            /* 内存里的 table、runs 和已经映射的溢写文件的 k 路归并，按键升序 */
+            private CountCursor merged(List<ByteBuffer> spilledRuns) {
+                List<CountCursor> cursors = new ArrayList<CountCursor>(spilledRuns.size() + runs.size() + 1);
+                for (ByteBuffer run : spilledRuns) {
+                    cursors.add(new CountRun.Reader(run));
+                }
+                for (ByteBuffer run : runs) {
+                    cursors.add(new CountRun.Reader(run));
+                }
+                if (table.size() > 0) {
+                    cursors.add(table.sortedCursor());
                 }
+                return new CountRunMerger(cursors.toArray(new CountCursor[cursors.size()]));
             }
 
-            void add(Map<DoubleWritable, IntWritable> m) {
-                for (Map.Entry<DoubleWritable, IntWritable> e : m.entrySet()) {
-                    Double k = e.getKey().get();
-                    if (map.containsKey(e.getKey())) {
-                        map.put(k, map.get(k) + e.getValue().get());
-                    } else {
-                        map.put(k, e.getValue().get());
+            private boolean hasSpilled() {
+                return spilled != null && !spilled.isEmpty();
+            }
+
+            /**
+             * @return 当前所有计数的游标；只有 table 时无序，有 run 或溢写文件时按键升序
+             */
+            CountCursor cursor() throws HiveException {
+                if (hasSpilled()) {
+                    try {
+                        return merged(spilled.map());
+                    } catch (IOException e) {
+                        throw new HiveException("map_count failed to map " + spilled.size() + " spilled runs", e);
                     }
                 }
+                if (runs.isEmpty()) {
+                    return table.cursor();
+                }
+                compact();
+                return new CountRun.Reader(runs.get(0));
+            }
+
+            /**
+             * @return 所有计数编码成的一个升序 run
+             */
+            byte[] toRun() throws HiveException {
+                if (hasSpilled()) {
+                    return CountRun.encode(cursor());
+                }
+                if (runs.isEmpty()) {
+                    return CountRun.encode(table);
+                }
+                compact();
+                ByteBuffer run = runs.get(0);
+                return run.hasArray() ? run.array() : CountRun.encode(new CountRun.Reader(run));
+            }
+
+            int spillCount() {
+                return spilled == null ? 0 : spilled.size();
+            }
+
+            long spilledBytes() {
+                return spilled == null ? 0 : spilled.bytes();
+            }
+
+            void clear() {
+                table.clear();
+                runs.clear();
+                runBytes = 0;
+                checkedCapacity = table.capacity();
+                if (spilled != null) {
+                    spilled.clear();
+                }
+            }
+
+            /* 只计算堆内的部分，溢写文件不算 */
+            @Override
+            public int estimate() {
+                JavaDataModel model = JavaDataModel.get();
+                return model.object() + model.ref() * 4 + model.primitive2() * 2 + model.primitive1() + table.estimate()
+                        + model.lengthForObjectArrayOfSize(runs.size()) + (int) runBytes;
             }
         }
 
@@ -111,7 +425,7 @@ public class GenericUDAFMap extends AbstractGenericUDAFResolver {
          * @throws HiveException
          */
         public AggregationBuffer getNewAggregationBuffer() throws HiveException {
-            MapAgg ma = new MapAgg();
+            MapAgg ma = new MapAgg(bufferBytes, spills);
             return ma;
         }
 
@@ -120,7 +434,7 @@ public class GenericUDAFMap extends AbstractGenericUDAFResolver {
          * @throws HiveException
          */
         public void reset(AggregationBuffer agg) throws HiveException {
-            ((MapAgg) agg).map.clear();
+            ((MapAgg) agg).clear();
         }
 
         /**
@@ -131,9 +445,13 @@ public class GenericUDAFMap extends AbstractGenericUDAFResolver {
          * @throws HiveException
          */
         public void iterate(AggregationBuffer agg, Object[] parameters) throws HiveException {
-            Double d = (Double) inputOI.getPrimitiveJavaObject(parameters[0]);
-            MapAgg ma = (MapAgg) agg;
-            ma.add(d);
+            Object p = parameters[0];
+            if (p != null) {
+                ((MapAgg) agg).add(key(p));
+            }
+            if (metrics != null) {
+                metrics.rowsIterated++;
+            }
         }
 
         /**
@@ -148,7 +466,15 @@ public class GenericUDAFMap extends AbstractGenericUDAFResolver {
          * @throws HiveException
          */
         public Object terminatePartial(AggregationBuffer agg) throws HiveException {
-            return terminate(agg);
+            MapAgg ma = (MapAgg) agg;
+            if (metrics != null) {
+                metrics.updatePeakBufferBytes(ma.estimate());
+            }
+            byte[] run = ma.toRun();
+            if (metrics != null) {
+                recordGroup(ma, new CountRun.Reader(ByteBuffer.wrap(run)).size());
+            }
+            return new BytesWritable(run);
         }
 
         /**
@@ -160,8 +486,12 @@ public class GenericUDAFMap extends AbstractGenericUDAFResolver {
          */
         public void merge(AggregationBuffer agg, Object partial) throws HiveException {
             if (partial != null) {
-                MapAgg ma = (MapAgg) agg;
-                ma.add((Map<DoubleWritable, IntWritable>) mapOI.getMap(partial));
+                // LazyBinary 的 BytesWritable 会被复用，必须拷贝一份
+                BytesWritable run = partialOI.getPrimitiveWritableObject(partial);
+                ((MapAgg) agg).addRun(Arrays.copyOf(run.getBytes(), run.getLength()));
+                if (metrics != null) {
+                    metrics.merges++;
+                }
             }
         }
 
@@ -174,7 +504,413 @@ public class GenericUDAFMap extends AbstractGenericUDAFResolver {
          */
         public Object terminate(AggregationBuffer agg) throws HiveException {
             MapAgg ma = (MapAgg) agg;
-            return ma.map;
+            Map<Object, Long> map = new HashMap<Object, Long>();
+            CountCursor cursor = ma.cursor();
+            while (cursor.next()) {
+                map.put(outputKey(cursor.key()), cursor.count());
+            }
+            recordGroup(ma, map.size());
+            return map;
+        }
+    }
+
+    /**
+     * tinyint/smallint/int/bigint：值本身就是计数表的键，bigint 超过 2^53 也不会像转成 double 那样丢精度。
+     * FINAL/PARTIAL2 阶段只能看到 binary 的部分聚合结果，输出 map 的键类型来自构造参数，
+     * 所以实现 Serializable，让 Hive 把 evaluator 连同类型一起放进执行计划，而不是只按类名重新实例化。
+     */
+    public static class GenericUDAFMapLongEvaluator extends GenericUDAFMapEvaluator implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private PrimitiveTypeInfo inputType;
+
+        /* 只有与 inputType 对应的一个非 null */
+        private transient ByteObjectInspector byteOI;
+        private transient ShortObjectInspector shortOI;
+        private transient IntObjectInspector intOI;
+        private transient LongObjectInspector longOI;
+
+        public GenericUDAFMapLongEvaluator() {
+        }
+
+        GenericUDAFMapLongEvaluator(PrimitiveTypeInfo inputType) {
+            this.inputType = inputType;
+        }
+
+        @Override
+        void initInput(ObjectInspector parameter) {
+            switch (inputType.getPrimitiveCategory()) {
+                case BYTE:
+                    byteOI = (ByteObjectInspector) parameter;
+                    break;
+                case SHORT:
+                    shortOI = (ShortObjectInspector) parameter;
+                    break;
+                case INT:
+                    intOI = (IntObjectInspector) parameter;
+                    break;
+                default:
+                    longOI = (LongObjectInspector) parameter;
+            }
+        }
+
+        @Override
+        long key(Object p) {
+            if (intOI != null) {
+                return intOI.get(p);
+            }
+            if (longOI != null) {
+                return longOI.get(p);
+            }
+            return shortOI != null ? shortOI.get(p) : byteOI.get(p);
+        }
+
+        @Override
+        ObjectInspector outputKeyOI() {
+            return PrimitiveObjectInspectorFactory.getPrimitiveJavaObjectInspector(inputType);
+        }
+
+        @Override
+        Object outputKey(long key) {
+            switch (inputType.getPrimitiveCategory()) {
+                case BYTE:
+                    return (byte) key;
+                case SHORT:
+                    return (short) key;
+                case INT:
+                    return (int) key;
+                default:
+                    return key;
+            }
+        }
+    }
+
+    /**
+     * 精度不超过 18 的 decimal：按类型的 scale 放大成 unscaled 的 long 作为键，输出时再按同样的 scale 还原。
+     * 同一个类型的值 scale 都相同，所以 long 的大小顺序就是 decimal 的大小顺序。
+     * decimal 没有原始类型的访问方法，它的 Java 对象 HiveDecimal 就是类型化的值。
+     */
+    public static class GenericUDAFMapDecimalEvaluator extends GenericUDAFMapEvaluator implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private DecimalTypeInfo inputType;
+
+        private transient HiveDecimalObjectInspector decimalOI;
+        /* key() 把输入复制到这里再原地放大，不修改输入，也不创建 HiveDecimal */
+        private transient HiveDecimalWritable scratch;
+
+        public GenericUDAFMapDecimalEvaluator() {
+        }
+
+        GenericUDAFMapDecimalEvaluator(DecimalTypeInfo inputType) {
+            this.inputType = inputType;
+        }
+
+        @Override
+        void initInput(ObjectInspector parameter) {
+            decimalOI = (HiveDecimalObjectInspector) parameter;
+            scratch = new HiveDecimalWritable();
+        }
+
+        /* 精度不超过 18，放大 scale 位之后是能放进 long 的整数，也就是 unscaled 值 */
+        @Override
+        long key(Object p) {
+            // Java 对象的 OI 取 writable 会新建一个，所以按 OI 偏好的形式读取
+            if (decimalOI.preferWritable()) {
+                scratch.set(decimalOI.getPrimitiveWritableObject(p));
+            } else {
+                scratch.set(decimalOI.getPrimitiveJavaObject(p));
+            }
+            scratch.mutateScaleByPowerOfTen(inputType.scale());
+            return scratch.longValue();
+        }
+
+        @Override
+        ObjectInspector outputKeyOI() {
+            return PrimitiveObjectInspectorFactory.getPrimitiveJavaObjectInspector(inputType);
+        }
+
+        @Override
+        Object outputKey(long key) {
+            return HiveDecimal.create(BigInteger.valueOf(key), inputType.scale());
+        }
+    }
+
+    /**
+     * string：键是 Text 的 UTF-8 字节，用 BytesCountTable 计数，iterate() 时不创建 String。
+     * 部分聚合结果是 {@link BytesCountTable#toRun()} 编码的 binary，
+     * merge() 直接在收到的字节上查找，只有新出现的键才会被拷贝。
+     */
+    public static class GenericUDAFMapStringEvaluator extends GenericUDAFEvaluator {
+
+        private transient StringObjectInspector inputOI;
+        private transient BinaryObjectInspector partialOI;
+
+        /* 未开启 udaf.demo.metrics.enabled 时为 null */
+        transient AggregationMetrics metrics;
+
+        @Override
+        public void configure(MapredContext mapredContext) {
+            metrics = AggregationMetrics.create(mapredContext, "map_count");
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (metrics != null) {
+                metrics.flush();
+            }
+        }
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
+            assert (parameters.length == 1);
+            super.init(m, parameters);
+
+            if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+                inputOI = (StringObjectInspector) parameters[0];
+            } else {
+                partialOI = (BinaryObjectInspector) parameters[0];
+            }
+
+            if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+                return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+            }
+            return ObjectInspectorFactory.getStandardMapObjectInspector(
+                    PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                    PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+        }
+
+        @AggregationType(estimable = true)
+        static class StringMapAgg extends AbstractAggregationBuffer {
+            final BytesCountTable table = new BytesCountTable();
+
+            @Override
+            public int estimate() {
+                JavaDataModel model = JavaDataModel.get();
+                return model.object() + model.ref() + table.estimate();
+            }
+        }
+
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            return new StringMapAgg();
+        }
+
+        public void reset(AggregationBuffer agg) throws HiveException {
+            ((StringMapAgg) agg).table.clear();
+        }
+
+        public void iterate(AggregationBuffer agg, Object[] parameters) throws HiveException {
+            Object p = parameters[0];
+            if (p != null) {
+                Text text = inputOI.getPrimitiveWritableObject(p);
+                ((StringMapAgg) agg).table.add(text.getBytes(), 0, text.getLength(), 1);
+            }
+            if (metrics != null) {
+                metrics.rowsIterated++;
+            }
+        }
+
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            StringMapAgg ma = (StringMapAgg) agg;
+            recordGroup(ma);
+            return new BytesWritable(ma.table.toRun());
+        }
+
+        public void merge(AggregationBuffer agg, Object partial) throws HiveException {
+            if (partial != null) {
+                BytesWritable run = partialOI.getPrimitiveWritableObject(partial);
+                ((StringMapAgg) agg).table.addRun(run.getBytes(), 0, run.getLength());
+                if (metrics != null) {
+                    metrics.merges++;
+                }
+            }
+        }
+
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            StringMapAgg ma = (StringMapAgg) agg;
+            BytesCountTable table = ma.table;
+            byte[] bytes = table.keyBytes();
+            Map<String, Long> map = new HashMap<String, Long>();
+            for (int i = 0; i < table.size(); i++) {
+                map.put(new String(bytes, table.offsetAt(i), table.lengthAt(i), StandardCharsets.UTF_8),
+                        table.countAt(i));
+            }
+            recordGroup(ma);
+            return map;
+        }
+
+        private void recordGroup(StringMapAgg ma) {
+            if (metrics != null) {
+                metrics.updatePeakBufferBytes(ma.estimate());
+                metrics.distinctKeys += ma.table.size();
+                metrics.maybeFlush();
+            }
+        }
+    }
+
+    /**
+     * 量化到固定桶的 map_count，计数结构见 {@link BucketHistogram}，输出和 double 版本一样是 map&lt;double, bigint&gt;。
+     * PARTIAL1/COMPLETE 阶段从常量参数读取 min/max/resolution；PARTIAL2/FINAL 阶段它们编码在部分聚合结果里。
+     */
+    public static class GenericUDAFMapHistogramEvaluator extends GenericUDAFEvaluator {
+
+        private transient DoubleObjectInspector inputOI;
+        private transient BinaryObjectInspector partialOI;
+        private double min;
+        private double max;
+        private double resolution;
+
+        /* 未开启 udaf.demo.metrics.enabled 时为 null */
+        transient AggregationMetrics metrics;
+
+        @Override
+        public void configure(MapredContext mapredContext) {
+            metrics = AggregationMetrics.create(mapredContext, "map_count");
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (metrics != null) {
+                metrics.flush();
+            }
+        }
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
+            super.init(m, parameters);
+
+            if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+                assert (parameters.length == 4);
+                inputOI = (DoubleObjectInspector) parameters[0];
+                min = constant(parameters, 1);
+                max = constant(parameters, 2);
+                resolution = constant(parameters, 3);
+                long buckets = BucketHistogram.bucketCount(min, max, resolution);
+                if (buckets < 0) {
+                    throw new UDFArgumentException("map_count expects min <= max and resolution > 0 but ("
+                            + min + ", " + max + ", " + resolution + ") is passed.");
+                }
+                if (buckets > BucketHistogram.MAX_BUCKETS) {
+                    throw new UDFArgumentException("map_count supports at most " + BucketHistogram.MAX_BUCKETS
+                            + " buckets but (" + min + ", " + max + ", " + resolution + ") needs " + buckets + ".");
+                }
+            } else {
+                partialOI = (BinaryObjectInspector) parameters[0];
+            }
+
+            if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+                return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+            }
+            return ObjectInspectorFactory.getStandardMapObjectInspector(
+                    PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+                    PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+        }
+
+        private static double constant(ObjectInspector[] parameters, int i) throws UDFArgumentException {
+            if (!(parameters[i] instanceof ConstantObjectInspector)) {
+                throw new UDFArgumentException("min, max and resolution of map_count must be constants.");
+            }
+            return PrimitiveObjectInspectorUtils.getDouble(((ConstantObjectInspector) parameters[i]).getWritableConstantValue(),
+                    (PrimitiveObjectInspector) parameters[i]);
+        }
+
+        /**
+         * merge 阶段要等看到第一个部分结果才知道桶的范围，所以延迟创建。
+         */
+        @AggregationType(estimable = true)
+        static class HistogramAgg extends AbstractAggregationBuffer {
+            BucketHistogram histogram;
+
+            @Override
+            public int estimate() {
+                JavaDataModel model = JavaDataModel.get();
+                return model.object() + model.ref() + (histogram == null ? 0 : histogram.estimate());
+            }
+        }
+
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            HistogramAgg agg = new HistogramAgg();
+            reset(agg);
+            return agg;
+        }
+
+        public void reset(AggregationBuffer agg) throws HiveException {
+            HistogramAgg ha = (HistogramAgg) agg;
+            if (inputOI != null) {
+                if (ha.histogram == null) {
+                    ha.histogram = new BucketHistogram(min, max, resolution);
+                } else {
+                    ha.histogram.clear();
+                }
+            } else {
+                ha.histogram = null;
+            }
+        }
+
+        public void iterate(AggregationBuffer agg, Object[] parameters) throws HiveException {
+            Object p = parameters[0];
+            if (p != null) {
+                ((HistogramAgg) agg).histogram.add(inputOI.get(p));
+            }
+            if (metrics != null) {
+                metrics.rowsIterated++;
+            }
+        }
+
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            HistogramAgg ha = (HistogramAgg) agg;
+            if (metrics != null) {
+                metrics.updatePeakBufferBytes(ha.estimate());
+                metrics.maybeFlush();
+            }
+            return ha.histogram == null ? null : new BytesWritable(ha.histogram.encode());
+        }
+
+        public void merge(AggregationBuffer agg, Object partial) throws HiveException {
+            if (partial != null) {
+                HistogramAgg ha = (HistogramAgg) agg;
+                BytesWritable bytes = partialOI.getPrimitiveWritableObject(partial);
+                ByteBuffer buf = ByteBuffer.wrap(bytes.getBytes(), 0, bytes.getLength());
+                if (ha.histogram == null) {
+                    ha.histogram = BucketHistogram.create(buf);
+                }
+                try {
+                    ha.histogram.merge(buf);
+                } catch (IllegalArgumentException e) {
+                    throw new HiveException(e.getMessage(), e);
+                }
+                if (metrics != null) {
+                    metrics.merges++;
+                }
+            }
+        }
+
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            HistogramAgg ha = (HistogramAgg) agg;
+            if (ha.histogram == null) {
+                // 和一个参数的 map_count 一样，没有行的分组输出空 map
+                return new HashMap<Double, Long>();
+            }
+            Map<Double, Long> map = toMap(ha.histogram.cursor());
+            if (metrics != null) {
+                metrics.updatePeakBufferBytes(ha.estimate());
+                metrics.distinctKeys += map.size();
+                metrics.maybeFlush();
+            }
+            return map;
+        }
+    }
+
+    /**
+     * 把计数游标转换成最终输出的 map&lt;double, bigint&gt;。
+     */
+    static Map<Double, Long> toMap(CountCursor cursor) {
+        Map<Double, Long> map = new HashMap<Double, Long>();
+        while (cursor.next()) {
+            map.put(LongCountTable.toDouble(cursor.key()), cursor.count());
         }
+        return map;
     }
 }
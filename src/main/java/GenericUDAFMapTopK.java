@@ -0,0 +1,197 @@
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.util.JavaDataModel;
+import org.apache.hadoop.hive.serde2.objectinspector.*;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.DoubleObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+@Description(name = "map_count_topk",
+        value = "_FUNC_(expr, k) - Return the approximate counts of the k most frequent values of expr, "
+                + "as a struct of counts map, per-key error map and total count",
+        extended = "Uses a Space-Saving summary of k counters, so memory per group is O(k). "
+                + "The true count of each key lies in [counts[key] - errors[key], counts[key]].")
+public class GenericUDAFMapTopK extends AbstractGenericUDAFResolver {
+    static final Log LOG = LogFactory.getLog(GenericUDAFMapTopK.class.getName());
+
+    @Override
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters) throws SemanticException {
+        // 验证参数个数
+        if (parameters.length != 2) {
+            throw new UDFArgumentTypeException(parameters.length - 1,
+                    "Exactly two arguments are expected.");
+        }
+        // 验证参数类型
+        if (parameters[0].getCategory() != ObjectInspector.Category.PRIMITIVE
+                || ((PrimitiveTypeInfo) parameters[0]).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.DOUBLE) {
+            throw new UDFArgumentTypeException(0,
+                    "Only double type arguments are accepted but "
+                            + parameters[0].getTypeName() + " is passed.");
+        }
+        if (parameters[1].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            throw new UDFArgumentTypeException(1, "The second argument must be a constant integer.");
+        }
+        switch (((PrimitiveTypeInfo) parameters[1]).getPrimitiveCategory()) {
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+                return new GenericUDAFMapTopKEvaluator();
+            default:
+                throw new UDFArgumentTypeException(1, "The second argument must be a constant integer.");
+        }
+    }
+
+    public static class GenericUDAFMapTopKEvaluator extends GenericUDAFEvaluator {
+
+        private DoubleObjectInspector inputOI;
+        private BinaryObjectInspector partialOI;
+        private int k;
+
+        /**
+         * PARTIAL1/COMPLETE 阶段从常量参数读取 k；PARTIAL2/FINAL 阶段的 k 编码在部分聚合结果里。
+         */
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
+            super.init(m, parameters);
+
+            if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+                assert (parameters.length == 2);
+                inputOI = (DoubleObjectInspector) parameters[0];
+                if (!(parameters[1] instanceof ConstantObjectInspector)) {
+                    throw new UDFArgumentException("The second argument of map_count_topk must be a constant.");
+                }
+                k = PrimitiveObjectInspectorUtils.getInt(((ConstantObjectInspector) parameters[1]).getWritableConstantValue(),
+                        (PrimitiveObjectInspector) parameters[1]);
+                if (k < 1) {
+                    throw new UDFArgumentException("The second argument of map_count_topk must be positive but " + k + " is passed.");
+                }
+            } else {
+                partialOI = (BinaryObjectInspector) parameters[0];
+            }
+
+            // 部分聚合结果是编码后的 SpaceSavingSummary
+            if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+                return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+            }
+            ObjectInspector countsOI = ObjectInspectorFactory.getStandardMapObjectInspector(
+                    PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+                    PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+            List<String> fieldNames = new ArrayList<String>(3);
+            List<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>(3);
+            fieldNames.add("counts");
+            fieldOIs.add(countsOI);
+            fieldNames.add("errors");
+            fieldOIs.add(countsOI);
+            fieldNames.add("total");
+            fieldOIs.add(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+            return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+        }
+
+        /**
+         * 摘要在 merge 阶段要等看到第一个部分结果才知道 k，所以延迟创建。
+         */
+        @AggregationType(estimable = true)
+        static class TopKAgg extends AbstractAggregationBuffer {
+            SpaceSavingSummary summary;
+
+            @Override
+            public int estimate() {
+                JavaDataModel model = JavaDataModel.get();
+                return model.object() + model.ref() + (summary == null ? 0 : summary.estimate());
+            }
+        }
+
+        /**
+         * 获取存放中间结果的对象
+         */
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            TopKAgg agg = new TopKAgg();
+            reset(agg);
+            return agg;
+        }
+
+        public void reset(AggregationBuffer agg) throws HiveException {
+            TopKAgg topk = (TopKAgg) agg;
+            if (k > 0) {
+                if (topk.summary == null) {
+                    topk.summary = new SpaceSavingSummary(k);
+                } else {
+                    topk.summary.clear();
+                }
+            } else {
+                topk.summary = null;
+            }
+        }
+
+        /**
+         * 处理一行数据
+         */
+        public void iterate(AggregationBuffer agg, Object[] parameters) throws HiveException {
+            Object p = parameters[0];
+            if (p != null) {
+                ((TopKAgg) agg).summary.offer(LongCountTable.fromDouble(inputOI.get(p)));
+            }
+        }
+
+        /**
+         * 返回部分聚合数据的持久化对象。
+         */
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            SpaceSavingSummary summary = ((TopKAgg) agg).summary;
+            return summary == null ? null : new BytesWritable(summary.encode());
+        }
+
+        /**
+         * 合并部分聚合数据，PARTIAL2 和 FINAL 阶段都走这里。
+         */
+        public void merge(AggregationBuffer agg, Object partial) throws HiveException {
+            if (partial != null) {
+                TopKAgg topk = (TopKAgg) agg;
+                BytesWritable bytes = partialOI.getPrimitiveWritableObject(partial);
+                SpaceSavingSummary other = SpaceSavingSummary.decode(ByteBuffer.wrap(bytes.getBytes(), 0, bytes.getLength()));
+                if (topk.summary == null) {
+                    topk.summary = other;
+                } else {
+                    topk.summary.merge(other);
+                }
+            }
+        }
+
+        /**
+         * 生成最终结果
+         */
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            SpaceSavingSummary summary = ((TopKAgg) agg).summary;
+            if (summary == null) {
+                return null;
+            }
+            Map<Double, Long> counts = new HashMap<Double, Long>();
+            Map<Double, Long> errors = new HashMap<Double, Long>();
+            for (int i = 0; i < summary.size(); i++) {
+                Double key = LongCountTable.toDouble(summary.keyAt(i));
+                counts.put(key, summary.countAt(i));
+                errors.put(key, summary.errorAt(i));
+            }
+            return new Object[]{counts, errors, summary.total()};
+        }
+    }
+}
@@ -0,0 +1,203 @@
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.ISupportStreamingModeForWindowing;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * map_count 在 ROWS 窗口上的流式 evaluator，由 {@link GenericUDAFMap.GenericUDAFMapEvaluator#getWindowingEvaluator} 创建。
+ * 进入窗口的值计数加一，离开窗口的值计数减一，减到 0 的键从表里删除，
+ * 不会像默认方式那样对每一行把整个窗口重新聚合一遍。
+ * 窗口里每一行的键存在一个环形数组里，离开窗口时按它找回要减的键。
+ *
+ * 计数表是不可变的 {@link LongCountTrie}，每次加减只复制一条路径上的节点（最多 13 层，1 万个键大约 3 层），
+ * 每一行的结果是当时那个版本上的只读 map 视图，不拷贝整个表。窗口结尾是 n FOLLOWING，或者同一个 PTF 里
+ * 有别的流式窗口函数的结尾是 FOLLOWING 时，Hive 会把结果缓存到之后才输出，旧版本不会再变，照样可以读。
+ */
+public class GenericUDAFMapWindowEvaluator extends GenericUDAFEvaluator implements ISupportStreamingModeForWindowing {
+
+    private final GenericUDAFMap.GenericUDAFMapEvaluator wrapped;
+    private final int preceding;
+    private final int following;
+
+    /**
+     * @param wrapped   已经按 COMPLETE 模式 init() 过的 evaluator，用它读取输入和转换输出的键
+     * @param preceding 当前行之前的行数，或者 {@link StreamingFrame#UNBOUNDED}，此时不需要删除任何值
+     * @param following 当前行之后的行数
+     */
+    GenericUDAFMapWindowEvaluator(GenericUDAFMap.GenericUDAFMapEvaluator wrapped, int preceding, int following) {
+        this.wrapped = wrapped;
+        this.preceding = preceding;
+        this.following = following;
+        // Hive 的流式窗口调用 aggregate() 和 evaluate()，基类按 mode 决定转给 iterate() 还是 merge()，
+        // 而 Hive 不会再 init() 这个 evaluator。mode 是包内可见的，只能通过基类的 init() 设置，它只记录 mode
+        try {
+            super.init(Mode.COMPLETE, null);
+        } catch (HiveException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static class WindowAgg extends AbstractAggregationBuffer {
+        LongCountTrie counts = LongCountTrie.EMPTY;
+        /* 最近 preceding + following + 1 行的键，第 i 行在 i % keys.length；UNBOUNDED 时为 null */
+        final long[] keys;
+        final boolean[] present;
+        final ArrayDeque<Object> results = new ArrayDeque<Object>();
+        int rows;
+
+        WindowAgg(int ringSize) {
+            keys = ringSize > 0 ? new long[ringSize] : null;
+            present = ringSize > 0 ? new boolean[ringSize] : null;
+        }
+    }
+
+    @Override
+    public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
+        throw new HiveException(getClass().getSimpleName() + ": init not supported");
+    }
+
+    @Override
+    public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+        return new WindowAgg(preceding == StreamingFrame.UNBOUNDED ? 0 : preceding + following + 1);
+    }
+
+    @Override
+    public void reset(AggregationBuffer agg) throws HiveException {
+        WindowAgg wa = (WindowAgg) agg;
+        wa.counts = LongCountTrie.EMPTY;
+        wa.results.clear();
+        wa.rows = 0;
+    }
+
+    /**
+     * 第 i 行进入窗口，同时第 i - preceding - following - 1 行离开；此后第 i - following 行的窗口就完整了。
+     */
+    @Override
+    public void iterate(AggregationBuffer agg, Object[] parameters) throws HiveException {
+        WindowAgg wa = (WindowAgg) agg;
+        Object p = parameters[0];
+        int i = wa.rows++;
+        if (wa.keys != null) {
+            int slot = i % wa.keys.length;
+            if (i >= wa.keys.length && wa.present[slot]) {
+                wa.counts = wa.counts.add(wa.keys[slot], -1);
+            }
+            wa.present[slot] = p != null;
+            if (p != null) {
+                wa.keys[slot] = wrapped.key(p);
+                wa.counts = wa.counts.add(wa.keys[slot], 1);
+            }
+        } else if (p != null) {
+            wa.counts = wa.counts.add(wrapped.key(p), 1);
+        }
+        if (i >= following) {
+            wa.results.add(new CountMap(wa.counts));
+        }
+    }
+
+    /**
+     * 分区结束，最后 following 行的窗口到分区末尾为止，依次移出窗口开头的行，算出它们的结果。
+     */
+    @Override
+    public Object terminate(AggregationBuffer agg) throws HiveException {
+        WindowAgg wa = (WindowAgg) agg;
+        for (int r = Math.max(0, wa.rows - following); r < wa.rows; r++) {
+            int leaving = r - preceding - 1;
+            if (wa.keys != null && leaving >= 0) {
+                int slot = leaving % wa.keys.length;
+                if (wa.present[slot]) {
+                    wa.counts = wa.counts.add(wa.keys[slot], -1);
+                    wa.present[slot] = false;
+                }
+            }
+            wa.results.add(new CountMap(wa.counts));
+        }
+        return null;
+    }
+
+    /**
+     * @return 下一行的结果，还没有算出来时返回 null
+     */
+    @Override
+    public Object getNextResult(AggregationBuffer agg) throws HiveException {
+        return ((WindowAgg) agg).results.poll();
+    }
+
+    @Override
+    public int getRowsRemainingAfterTerminate() throws HiveException {
+        return following;
+    }
+
+    @Override
+    public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+        throw new HiveException(getClass().getSimpleName() + ": terminatePartial not supported");
+    }
+
+    @Override
+    public void merge(AggregationBuffer agg, Object partial) throws HiveException {
+        throw new HiveException(getClass().getSimpleName() + ": merge not supported");
+    }
+
+    /**
+     * 计数表一个版本的只读 map 视图，键和计数在遍历时才装箱。
+     */
+    private final class CountMap extends AbstractMap<Object, Long> {
+
+        private final LongCountTrie counts;
+
+        CountMap(LongCountTrie counts) {
+            this.counts = counts;
+        }
+
+        @Override
+        public Set<Map.Entry<Object, Long>> entrySet() {
+            return new AbstractSet<Map.Entry<Object, Long>>() {
+                @Override
+                public int size() {
+                    return counts.size();
+                }
+
+                @Override
+                public Iterator<Map.Entry<Object, Long>> iterator() {
+                    final CountCursor cursor = counts.cursor();
+                    return new Iterator<Map.Entry<Object, Long>>() {
+                        /* 游标只能前进，hasNext() 先把它移到下一个键，next() 再取走 */
+                        private boolean advanced;
+                        private boolean hasNext;
+
+                        @Override
+                        public boolean hasNext() {
+                            if (!advanced) {
+                                hasNext = cursor.next();
+                                advanced = true;
+                            }
+                            return hasNext;
+                        }
+
+                        @Override
+                        public Map.Entry<Object, Long> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            advanced = false;
+                            return new SimpleImmutableEntry<Object, Long>(wrapped.outputKey(cursor.key()), cursor.count());
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
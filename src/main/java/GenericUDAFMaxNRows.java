@@ -0,0 +1,338 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
+
+@Description(name = "max_n_rows", value = "_FUNC_(k, expr, cols...) - Returns the k rows with the largest values of expr "
+        + "as an array of structs, ordered by expr descending")
+public class GenericUDAFMaxNRows extends AbstractGenericUDAFResolver {
+
+    static final Log LOG = LogFactory.getLog(GenericUDAFMaxNRows.class.getName());
+
+    /* 验证数据类型：第一个参数是常量整数 k，第二个参数是排序用的列，必须可比较。*/
+    @Override
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters) throws SemanticException {
+        if (parameters.length < 2) {
+            throw new UDFArgumentTypeException(parameters.length - 1, "At least two arguments are expected.");
+        }
+        if (parameters[0].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            throw new UDFArgumentTypeException(0, "The first argument must be a constant integer.");
+        }
+        switch (((PrimitiveTypeInfo) parameters[0]).getPrimitiveCategory()) {
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+                break;
+            default:
+                throw new UDFArgumentTypeException(0, "The first argument must be a constant integer.");
+        }
+        ObjectInspector oi = TypeInfoUtils.getStandardJavaObjectInspectorFromTypeInfo(parameters[1]);
+        if (!ObjectInspectorUtils.compareSupported(oi)) {
+            throw new UDFArgumentTypeException(1, "Cannot support comparison of map<> type or complex type containing map<>.");
+        }
+        return new GenericUDAFMaxNRowsEvaluator();
+    }
+
+    /**
+     * 每个分组用一个最多 k 行的小顶堆保存当前最大的 k 行，堆顶是其中最小的一行，
+     * 新行只要和堆顶比较一次就能决定是否入堆，总代价 O(n log k)，不需要对分组排序。
+     * 部分聚合结果是 struct&lt;k, rows: array&lt;struct&gt;&gt;，k 跟着部分结果一起传给 reduce 端。
+     */
+    public static class GenericUDAFMaxNRowsEvaluator extends GenericUDAFEvaluator {
+
+        /* 行中每一列的输入 OI 和标准 OI，第 0 列是排序列 */
+        ObjectInspector[] inputOIs;
+        ObjectInspector[] outputOIs;
+        ObjectInspector rowOI;
+
+        /* reduce 端输入的部分聚合结构体 */
+        StructObjectInspector partialOI;
+        StructField kField;
+        StructField rowsField;
+        ListObjectInspector rowsOI;
+        StructObjectInspector partialRowOI;
+        List<? extends StructField> partialRowFields;
+
+        int k;
+
+        /* 未开启 udaf.demo.metrics.enabled 时为 null */
+        AggregationMetrics metrics;
+
+        @Override
+        public void configure(MapredContext mapredContext) {
+            metrics = AggregationMetrics.create(mapredContext, "max_n_rows");
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (metrics != null) {
+                metrics.flush();
+            }
+        }
+
+        @Override
+        public ObjectInspector init(Mode mode, ObjectInspector[] parameters) throws HiveException {
+            super.init(mode, parameters);
+
+            if (mode == Mode.PARTIAL1 || mode == Mode.COMPLETE) {
+                if (!(parameters[0] instanceof ConstantObjectInspector)) {
+                    throw new UDFArgumentException("The first argument of max_n_rows must be a constant.");
+                }
+                k = PrimitiveObjectInspectorUtils.getInt(((ConstantObjectInspector) parameters[0]).getWritableConstantValue(),
+                        (PrimitiveObjectInspector) parameters[0]);
+                if (k < 1) {
+                    throw new UDFArgumentException("The first argument of max_n_rows must be positive but " + k + " is passed.");
+                }
+                inputOIs = Arrays.copyOfRange(parameters, 1, parameters.length);
+            } else {
+                partialOI = (StructObjectInspector) parameters[0];
+                kField = partialOI.getStructFieldRef("k");
+                rowsField = partialOI.getStructFieldRef("rows");
+                rowsOI = (ListObjectInspector) rowsField.getFieldObjectInspector();
+                partialRowOI = (StructObjectInspector) rowsOI.getListElementObjectInspector();
+                partialRowFields = partialRowOI.getAllStructFieldRefs();
+                inputOIs = new ObjectInspector[partialRowFields.size()];
+                for (int i = 0; i < inputOIs.length; i++) {
+                    inputOIs[i] = partialRowFields.get(i).getFieldObjectInspector();
+                }
+            }
+
+            int length = inputOIs.length;
+            outputOIs = new ObjectInspector[length];
+            List<String> fieldNames = new ArrayList<String>(length);
+            for (int i = 0; i < length; i++) {
+                fieldNames.add("col" + i);
+                outputOIs[i] = ObjectInspectorUtils.getStandardObjectInspector(inputOIs[i]);
+            }
+            rowOI = ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, Arrays.asList(outputOIs));
+            ObjectInspector rowsListOI = ObjectInspectorFactory.getStandardListObjectInspector(rowOI);
+
+            if (mode == Mode.PARTIAL1 || mode == Mode.PARTIAL2) {
+                List<String> partialNames = new ArrayList<String>(2);
+                List<ObjectInspector> partialOIs = new ArrayList<ObjectInspector>(2);
+                partialNames.add("k");
+                partialOIs.add(PrimitiveObjectInspectorFactory.javaIntObjectInspector);
+                partialNames.add("rows");
+                partialOIs.add(rowsListOI);
+                return ObjectInspectorFactory.getStandardStructObjectInspector(partialNames, partialOIs);
+            }
+            return rowsListOI;
+        }
+
+        /* heap[0..size) 是按第 0 列排序的小顶堆；k 在 merge 阶段从部分结果里得到 */
+        static class MaxNAgg implements AggregationBuffer {
+            int k;
+            Object[][] heap;
+            int size;
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            MaxNAgg agg = new MaxNAgg();
+            reset(agg);
+            return agg;
+        }
+
+        @Override
+        public void reset(AggregationBuffer agg) throws HiveException {
+            MaxNAgg maxn = (MaxNAgg) agg;
+            maxn.size = 0;
+            if (k > 0) {
+                setK(maxn, k);
+            }
+        }
+
+        private static void setK(MaxNAgg maxn, int k) {
+            if (maxn.heap == null || maxn.k != k) {
+                maxn.k = k;
+                maxn.heap = new Object[k][];
+                maxn.size = 0;
+            }
+        }
+
+        /*处理一行数据*/
+        @Override
+        public void iterate(AggregationBuffer agg, Object[] parameters) throws HiveException {
+            if (metrics != null) {
+                metrics.rowsIterated++;
+            }
+            MaxNAgg maxn = (MaxNAgg) agg;
+            // parameters[0] 是 k，行从 parameters[1] 开始
+            Object[] row = slotFor(maxn, parameters[1], inputOIs[0]);
+            if (row != null) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = ObjectInspectorUtils.copyToStandardObject(parameters[i + 1], inputOIs[i]);
+                }
+                admit(maxn);
+            }
+        }
+
+        /* 返回部分聚合数据 struct<k, rows>，rows 不需要排序 */
+        @Override
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            MaxNAgg maxn = (MaxNAgg) agg;
+            List<Object> rows = new ArrayList<Object>(maxn.size);
+            for (int i = 0; i < maxn.size; i++) {
+                rows.add(maxn.heap[i]);
+            }
+            return new Object[]{maxn.k, rows};
+        }
+
+        /* 把部分结果里的行逐个插入堆，和 iterate 一样先只比较第 0 列 */
+        @Override
+        public void merge(AggregationBuffer agg, Object partial) throws HiveException {
+            if (partial == null) {
+                return;
+            }
+            if (metrics != null) {
+                metrics.merges++;
+            }
+            MaxNAgg maxn = (MaxNAgg) agg;
+            if (maxn.heap == null) {
+                int partialK = PrimitiveObjectInspectorUtils.getInt(partialOI.getStructFieldData(partial, kField),
+                        (PrimitiveObjectInspector) kField.getFieldObjectInspector());
+                // 没有合并过部分结果的 PARTIAL2 缓冲区输出的 k 是 0，也不带任何行，不能用它来确定 k
+                if (partialK <= 0) {
+                    return;
+                }
+                setK(maxn, partialK);
+            }
+            Object rows = partialOI.getStructFieldData(partial, rowsField);
+            int n = rowsOI.getListLength(rows);
+            StructField keyField = partialRowFields.get(0);
+            for (int r = 0; r < n; r++) {
+                Object partialRow = rowsOI.getListElement(rows, r);
+                Object key = partialRowOI.getStructFieldData(partialRow, keyField);
+                Object[] row = slotFor(maxn, key, inputOIs[0]);
+                if (row != null) {
+                    row[0] = ObjectInspectorUtils.copyToStandardObject(key, inputOIs[0]);
+                    for (int i = 1; i < row.length; i++) {
+                        row[i] = ObjectInspectorUtils.copyToStandardObject(
+                                partialRowOI.getStructFieldData(partialRow, partialRowFields.get(i)), inputOIs[i]);
+                    }
+                    admit(maxn);
+                }
+            }
+        }
+
+        /* 生成最终结果：按第 0 列从大到小排列的行 */
+        @Override
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            MaxNAgg maxn = (MaxNAgg) agg;
+            if (metrics != null) {
+                metrics.distinctKeys += maxn.size;
+                metrics.maybeFlush();
+            }
+            // FINAL 阶段没有合并过任何部分结果时 k 还不知道，堆也没有分配，比如对空表的全局聚合
+            if (maxn.heap == null) {
+                return new ArrayList<Object>();
+            }
+            Object[][] rows = Arrays.copyOf(maxn.heap, maxn.size);
+            final ObjectInspector keyOI = outputOIs[0];
+            Arrays.sort(rows, new Comparator<Object[]>() {
+                public int compare(Object[] o1, Object[] o2) {
+                    return ObjectInspectorUtils.compare(o2[0], keyOI, o1[0], keyOI);
+                }
+            });
+            List<Object> result = new ArrayList<Object>(rows.length);
+            for (Object[] row : rows) {
+                result.add(Arrays.asList(row));
+            }
+            return result;
+        }
+
+        /**
+         * 判断排序列为 key 的行能否进入前 k 行。
+         *
+         * @return 能进入时返回用来存放这一行的数组（堆满时复用被淘汰的堆顶行），之后必须调用 admit()；否则返回 null
+         */
+        private Object[] slotFor(MaxNAgg maxn, Object key, ObjectInspector keyOI) {
+            if (maxn.size < maxn.k) {
+                Object[] row = maxn.heap[maxn.size];
+                if (row == null || row.length != inputOIs.length) {
+                    row = new Object[inputOIs.length];
+                    maxn.heap[maxn.size] = row;
+                }
+                return row;
+            }
+            if (ObjectInspectorUtils.compare(maxn.heap[0][0], outputOIs[0], key, keyOI) >= 0) {
+                return null;
+            }
+            return maxn.heap[0];
+        }
+
+        /* slotFor() 返回的行填好之后调整堆 */
+        private void admit(MaxNAgg maxn) {
+            if (metrics != null) {
+                metrics.newMax++;
+            }
+            if (maxn.size < maxn.k) {
+                siftUp(maxn, maxn.size++);
+            } else {
+                siftDown(maxn, 0);
+            }
+        }
+
+        private void siftUp(MaxNAgg maxn, int i) {
+            Object[][] heap = maxn.heap;
+            Object[] row = heap[i];
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (ObjectInspectorUtils.compare(heap[parent][0], outputOIs[0], row[0], outputOIs[0]) <= 0) {
+                    break;
+                }
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = row;
+        }
+
+        private void siftDown(MaxNAgg maxn, int i) {
+            Object[][] heap = maxn.heap;
+            Object[] row = heap[i];
+            int size = maxn.size;
+            while (true) {
+                int child = (i << 1) + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size
+                        && ObjectInspectorUtils.compare(heap[child + 1][0], outputOIs[0], heap[child][0], outputOIs[0]) < 0) {
+                    child++;
+                }
+                if (ObjectInspectorUtils.compare(heap[child][0], outputOIs[0], row[0], outputOIs[0]) >= 0) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = row;
+        }
+    }
+}
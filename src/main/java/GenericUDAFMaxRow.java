@@ -1,16 +1,20 @@
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.plan.ptf.WindowFrameDef;
 import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
-import org.apache.hadoop.hive.serde2.lazybinary.LazyBinaryStruct;
+import org.apache.hadoop.hive.ql.util.JavaDataModel;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
@@ -18,6 +22,8 @@ import org.apache.hadoop.hive.serde2.objectinspector.StructField;
 import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
 
 @Description(name = "maxrow", value = "_FUNC_(expr) - Returns the maximum value of expr and values of associated columns as a struct")
 public class GenericUDAFMaxRow extends AbstractGenericUDAFResolver {
@@ -43,6 +49,25 @@ public class GenericUDAFMaxRow extends AbstractGenericUDAFResolver {
         ObjectInspector[] outputOIs;
         ObjectInspector structOI;
 
+        /* reduce 端输入的部分聚合结构体，只在 merge() 中使用 */
+        StructObjectInspector partialOI;
+        List<? extends StructField> partialFields;
+
+        /* 未开启 udaf.demo.metrics.enabled 时为 null */
+        AggregationMetrics metrics;
+
+        @Override
+        public void configure(MapredContext mapredContext) {
+            metrics = AggregationMetrics.create(mapredContext, "maxrow");
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (metrics != null) {
+                metrics.flush();
+            }
+        }
+
         /*
         *  实例化 Evaluator 类的时候调用的，在不同的阶段需要返回不同的 OI。
         *
@@ -67,7 +92,9 @@ public class GenericUDAFMaxRow extends AbstractGenericUDAFResolver {
         * */
         @Override
         public ObjectInspector init(Mode mode, ObjectInspector[] parameters) throws HiveException {
-            System.out.println("init");
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("init " + mode + " with " + parameters.length + " parameters");
+            }
             super.init(mode, parameters);
 
             int length = parameters.length;
@@ -86,7 +113,6 @@ public class GenericUDAFMaxRow extends AbstractGenericUDAFResolver {
 
         /* Initialize the UDAF on the map side. */
         private void initMapSide(ObjectInspector[] parameters) throws HiveException {
-            System.out.println("initMapSide");
             int length = parameters.length;
             outputOIs = new ObjectInspector[length];
             List<String> fieldNames = new ArrayList<String>(length);
@@ -103,8 +129,9 @@ public class GenericUDAFMaxRow extends AbstractGenericUDAFResolver {
 
         /* Initialize the UDAF on the reduce side (or the map side in some cases). */
         private void initReduceSide(StructObjectInspector inputStructOI) throws HiveException {
-            System.out.println("initReduceSide");
             List<? extends StructField> fields = inputStructOI.getAllStructFieldRefs();
+            partialOI = inputStructOI;
+            partialFields = fields;
             int length = fields.size();
             inputOIs = new ObjectInspector[length];
             outputOIs = new ObjectInspector[length];
@@ -116,30 +143,121 @@ public class GenericUDAFMaxRow extends AbstractGenericUDAFResolver {
             structOI = ObjectInspectorUtils.getStandardObjectInspector(inputStructOI);
         }
 
-        static class MaxAgg implements AggregationBuffer {
+        /**
+         * 窗口从 n PRECEDING / UNBOUNDED PRECEDING / CURRENT ROW 开始、到 CURRENT ROW / n FOLLOWING 结束时，
+         * 返回用单调队列维护窗口最大行的流式 evaluator；其它窗口返回 null，由 Hive 对每一行重新计算。
+         */
+        @Override
+        public GenericUDAFEvaluator getWindowingEvaluator(WindowFrameDef wFrmDef) {
+            StreamingFrame frame = StreamingFrame.of(wFrmDef);
+            if (frame == null) {
+                return null;
+            }
+            return new GenericUDAFMaxRowWindowEvaluator(this, frame);
+        }
+
+        /* objects 在第一次找到最大值时分配，之后一直复用，只替换其中的元素 */
+        @AggregationType(estimable = true)
+        static class MaxAgg extends AbstractAggregationBuffer {
             Object[] objects;
+            boolean empty = true;
+
+            /* 当前最大行的大小，列值是 copyToStandardObject 之后的对象 */
+            @Override
+            public int estimate() {
+                JavaDataModel model = JavaDataModel.get();
+                int size = model.object() + model.ref() + model.primitive1();
+                if (objects != null) {
+                    size += model.lengthForObjectArrayOfSize(objects.length);
+                    if (!empty) {
+                        for (Object o : objects) {
+                            size += estimate(model, o);
+                        }
+                    }
+                }
+                return size;
+            }
+
+            /* 字符串和二进制按长度计算，list、map 递归计算，其它值都按一个装箱的 long 估计 */
+            private static int estimate(JavaDataModel model, Object o) {
+                if (o == null) {
+                    return 0;
+                }
+                if (o instanceof String) {
+                    return model.lengthForStringOfLength(((String) o).length());
+                }
+                if (o instanceof Text) {
+                    return model.object() + model.ref() + model.primitive1()
+                            + model.lengthForByteArrayOfSize(((Text) o).getBytes().length);
+                }
+                if (o instanceof BytesWritable) {
+                    return model.object() + model.ref() + model.primitive1() * 2
+                            + model.lengthForByteArrayOfSize(((BytesWritable) o).getCapacity());
+                }
+                if (o instanceof byte[]) {
+                    return model.lengthForByteArrayOfSize(((byte[]) o).length);
+                }
+                if (o instanceof List) {
+                    List<?> list = (List<?>) o;
+                    int size = model.arrayList() + model.lengthForObjectArrayOfSize(list.size());
+                    for (Object element : list) {
+                        size += estimate(model, element);
+                    }
+                    return size;
+                }
+                if (o instanceof Map) {
+                    Map<?, ?> map = (Map<?, ?>) o;
+                    int size = model.hashMap(map.size());
+                    for (Map.Entry<?, ?> entry : map.entrySet()) {
+                        size += estimate(model, entry.getKey()) + estimate(model, entry.getValue());
+                    }
+                    return size;
+                }
+                return model.object() + model.primitive2();
+            }
         }
 
         /* 获取存放中间结果的对象 */
         @Override
         public AggregationBuffer getNewAggregationBuffer() throws HiveException {
-            System.out.println("getNewAggregationBuffer");
             MaxAgg result = new MaxAgg();
             return result;
         }
 
         @Override
         public void reset(AggregationBuffer agg) throws HiveException {
-            System.out.println("reset");
             MaxAgg maxagg = (MaxAgg) agg;
-            maxagg.objects = null;
+            maxagg.empty = true;
         }
 
         /*处理一行数据*/
         @Override
         public void iterate(AggregationBuffer agg, Object[] parameters) throws HiveException {
-            System.out.println("iterate");
-            merge(agg, parameters);
+            if (metrics != null) {
+                metrics.rowsIterated++;
+            }
+            MaxAgg maxagg = (MaxAgg) agg;
+            // 先只比较第一列，大多数行在这里就被淘汰了
+            if (!maxagg.empty
+                    && ObjectInspectorUtils.compare(maxagg.objects[0], outputOIs[0], parameters[0], inputOIs[0]) >= 0) {
+                return;
+            }
+            int length = parameters.length;
+            Object[] objects = ensureBuffer(maxagg, length);
+            for (int i = 0; i < length; i++) {
+                objects[i] = ObjectInspectorUtils.copyToStandardObject(parameters[i], inputOIs[i]);
+            }
+            maxagg.empty = false;
+            if (metrics != null) {
+                metrics.newMax++;
+            }
+        }
+
+        private static Object[] ensureBuffer(MaxAgg maxagg, int length) {
+            if (maxagg.objects == null || maxagg.objects.length != length) {
+                maxagg.objects = new Object[length];
+            }
+            return maxagg.objects;
         }
 
         /* 返回部分聚合数据的持久化对象。
@@ -149,41 +267,38 @@ public class GenericUDAFMaxRow extends AbstractGenericUDAFResolver {
          * 不能返回自定义的类，即使实现了 Serializable 也不行，否则会出现问题或者错误的结果。*/
         @Override
         public Object terminatePartial(AggregationBuffer agg) throws HiveException {
-            System.out.println("terminatePartial");
-            return terminate(agg);
+            MaxAgg maxagg = (MaxAgg) agg;
+            if (metrics != null) {
+                metrics.updatePeakBufferBytes(maxagg.estimate());
+                metrics.maybeFlush();
+            }
+            return result(maxagg);
         }
 
         /*将 terminatePartial 返回的部分聚合数据进行合并，需要使用到对应的 OI。*/
         @Override
         public void merge(AggregationBuffer agg, Object partial) throws HiveException {
-            System.out.println("merge");
             if (partial != null) {
+                if (metrics != null) {
+                    metrics.merges++;
+                }
                 MaxAgg maxagg = (MaxAgg) agg;
-                List<Object> objects;
-                if (partial instanceof Object[]) {
-                    objects = Arrays.asList((Object[]) partial);
-                } else if (partial instanceof LazyBinaryStruct) {
-                    objects = ((LazyBinaryStruct) partial).getFieldsAsList();
-                } else {
-                    throw new HiveException("Invalid type: " + partial.getClass().getName());
+                // 通过 StructObjectInspector 只取第一列，LazyBinaryStruct 只会反序列化这一个字段
+                Object key = partialOI.getStructFieldData(partial, partialFields.get(0));
+                if (!maxagg.empty
+                        && ObjectInspectorUtils.compare(maxagg.objects[0], outputOIs[0], key, inputOIs[0]) >= 0) {
+                    return;
                 }
-
-                boolean isMax = false;
-                if (maxagg.objects == null) {
-                    isMax = true;
-                } else {
-                    int cmp = ObjectInspectorUtils.compare(maxagg.objects[0], outputOIs[0], objects.get(0), inputOIs[0]);
-                    if (cmp < 0) {
-                        isMax = true;
-                    }
+                int length = partialFields.size();
+                Object[] objects = ensureBuffer(maxagg, length);
+                objects[0] = ObjectInspectorUtils.copyToStandardObject(key, inputOIs[0]);
+                for (int i = 1; i < length; i++) {
+                    objects[i] = ObjectInspectorUtils.copyToStandardObject(
+                            partialOI.getStructFieldData(partial, partialFields.get(i)), inputOIs[i]);
                 }
-
-                if (isMax) {
-                    int length = objects.size();
-                    maxagg.objects = new Object[length];
-                    for (int i = 0; i < length; i++) {
-                        maxagg.objects[i] = ObjectInspectorUtils.copyToStandardObject(objects.get(i), inputOIs[i]);
-                    }
+                maxagg.empty = false;
+                if (metrics != null) {
+                    metrics.newMax++;
                 }
             }
         }
@@ -191,8 +306,20 @@ public class GenericUDAFMaxRow extends AbstractGenericUDAFResolver {
         /*生成最终结果*/
         @Override
         public Object terminate(AggregationBuffer agg) throws HiveException {
-            System.out.println("terminate");
             MaxAgg maxagg = (MaxAgg) agg;
+            // 只有最终结果才算一个分组，部分结果还会在 reduce 端合并
+            if (metrics != null) {
+                metrics.updatePeakBufferBytes(maxagg.estimate());
+                metrics.distinctKeys++;
+                metrics.maybeFlush();
+            }
+            return result(maxagg);
+        }
+
+        private static Object result(MaxAgg maxagg) {
+            if (maxagg.empty) {
+                return null;
+            }
             return Arrays.asList(maxagg.objects);
         }
     }
@@ -0,0 +1,288 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.ByteStream;
+import org.apache.hadoop.hive.serde2.SerDeException;
+import org.apache.hadoop.hive.serde2.binarysortable.BinarySortableSerDe;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.WritableComparator;
+
+@Description(name = "maxrow_binkey", value = "_FUNC_(n, key1, ..., keyn, cols...) - Returns the row with the maximum "
+        + "(key1, ..., keyn) and values of associated columns as a struct",
+        extended = "n must be a positive integer constant; the keys are compared in order, later keys only break ties.\n"
+                + "Each key is encoded once per row into the binary sortable form of BinarySortableSerDe and rows are "
+                + "compared as unsigned bytes, which is much cheaper than maxrow for string, struct and compound keys.")
+public class GenericUDAFMaxRowBinKey extends AbstractGenericUDAFResolver {
+
+    static final Log LOG = LogFactory.getLog(GenericUDAFMaxRowBinKey.class.getName());
+
+    /* 验证数据类型：第一个参数是常量整数 n，之后的 n 列是键，必须可比较。*/
+    @Override
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters) throws SemanticException {
+        if (parameters.length < 2) {
+            throw new UDFArgumentTypeException(parameters.length - 1, "At least two arguments are expected.");
+        }
+        if (parameters[0].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            throw new UDFArgumentTypeException(0, "The first argument must be a constant integer.");
+        }
+        switch (((PrimitiveTypeInfo) parameters[0]).getPrimitiveCategory()) {
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+                break;
+            default:
+                throw new UDFArgumentTypeException(0, "The first argument must be a constant integer.");
+        }
+        // n 要到 init() 才知道，这里只能先检查第一个键，其余的键在 init() 中检查
+        ObjectInspector oi = TypeInfoUtils.getStandardJavaObjectInspectorFromTypeInfo(parameters[1]);
+        if (!ObjectInspectorUtils.compareSupported(oi)) {
+            throw new UDFArgumentTypeException(1, "Cannot support comparison of map<> type or complex type containing map<>.");
+        }
+        return new GenericUDAFMaxRowBinKeyEvaluator();
+    }
+
+    /**
+     * 和 maxrow 一样保留键最大的一行，键相等时保留先出现的行。
+     * 键列在 iterate() 时用 BinarySortableSerDe 升序、null 在前的格式编码一次，和当前最大行的键字节比较，
+     * 只有成为新的最大行时才拷贝各列；编码后的键和最大行一起放在部分聚合结果 struct&lt;key: binary, col0, ...&gt; 里，
+     * merge() 只取出 key 字段做字节比较，不需要重新编码，也不需要反序列化其它列。
+     *
+     * 二进制排序和 ObjectInspectorUtils.compare 只在个别边界值上有区别：-0.0 排在 0.0 之前，而 compare 认为二者相等。
+     */
+    public static class GenericUDAFMaxRowBinKeyEvaluator extends GenericUDAFEvaluator {
+
+        /* 行中每一列的输入 OI 和标准 OI，前 keyCount 列是键 */
+        ObjectInspector[] inputOIs;
+        ObjectInspector[] outputOIs;
+        int keyCount;
+
+        /* PARTIAL1/COMPLETE 阶段编码键用 */
+        private List<ObjectInspector> keyOIs;
+        private boolean[] sortOrders;
+        private byte[] nullMarkers;
+        private byte[] notNullMarkers;
+        private Object[] keyFields;
+        private final ByteStream.Output keyOutput = new ByteStream.Output();
+
+        /* reduce 端输入的部分聚合结构体，只在 merge() 中使用 */
+        StructObjectInspector partialOI;
+        List<? extends StructField> partialFields;
+        BinaryObjectInspector partialKeyOI;
+
+        /* 未开启 udaf.demo.metrics.enabled 时为 null */
+        AggregationMetrics metrics;
+
+        @Override
+        public void configure(MapredContext mapredContext) {
+            metrics = AggregationMetrics.create(mapredContext, "maxrow_binkey");
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (metrics != null) {
+                metrics.flush();
+            }
+        }
+
+        @Override
+        public ObjectInspector init(Mode mode, ObjectInspector[] parameters) throws HiveException {
+            super.init(mode, parameters);
+
+            if (mode == Mode.PARTIAL1 || mode == Mode.COMPLETE) {
+                if (!(parameters[0] instanceof ConstantObjectInspector)) {
+                    throw new UDFArgumentException("The first argument of maxrow_binkey must be a constant.");
+                }
+                keyCount = PrimitiveObjectInspectorUtils.getInt(((ConstantObjectInspector) parameters[0]).getWritableConstantValue(),
+                        (PrimitiveObjectInspector) parameters[0]);
+                if (keyCount < 1 || keyCount > parameters.length - 1) {
+                    throw new UDFArgumentException("The first argument of maxrow_binkey must be between 1 and "
+                            + (parameters.length - 1) + " but " + keyCount + " is passed.");
+                }
+                inputOIs = Arrays.copyOfRange(parameters, 1, parameters.length);
+                for (int i = 0; i < keyCount; i++) {
+                    if (!ObjectInspectorUtils.compareSupported(inputOIs[i])) {
+                        throw new UDFArgumentTypeException(i + 1,
+                                "Cannot support comparison of map<> type or complex type containing map<>.");
+                    }
+                }
+                keyOIs = Arrays.asList(Arrays.copyOf(inputOIs, keyCount));
+                // 都是升序（不取反），null 最小，和 ObjectInspectorUtils.compare 的 null 语义一致
+                sortOrders = new boolean[keyCount];
+                nullMarkers = new byte[keyCount];
+                notNullMarkers = new byte[keyCount];
+                Arrays.fill(nullMarkers, BinarySortableSerDe.ZERO);
+                Arrays.fill(notNullMarkers, BinarySortableSerDe.ONE);
+                keyFields = new Object[keyCount];
+            } else {
+                partialOI = (StructObjectInspector) parameters[0];
+                partialFields = partialOI.getAllStructFieldRefs();
+                partialKeyOI = (BinaryObjectInspector) partialFields.get(0).getFieldObjectInspector();
+                inputOIs = new ObjectInspector[partialFields.size() - 1];
+                for (int i = 0; i < inputOIs.length; i++) {
+                    inputOIs[i] = partialFields.get(i + 1).getFieldObjectInspector();
+                }
+            }
+
+            int length = inputOIs.length;
+            outputOIs = new ObjectInspector[length];
+            List<String> fieldNames = new ArrayList<String>(length + 1);
+            for (int i = 0; i < length; i++) {
+                fieldNames.add("col" + i);
+                outputOIs[i] = ObjectInspectorUtils.getStandardObjectInspector(inputOIs[i]);
+            }
+            if (mode == Mode.PARTIAL1 || mode == Mode.PARTIAL2) {
+                List<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>(length + 1);
+                fieldNames.add(0, "key");
+                fieldOIs.add(PrimitiveObjectInspectorFactory.writableBinaryObjectInspector);
+                fieldOIs.addAll(Arrays.asList(outputOIs));
+                return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+            }
+            return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, Arrays.asList(outputOIs));
+        }
+
+        /* key 和 objects 在第一次找到最大值时分配，之后一直复用 */
+        static class BinKeyAgg implements AggregationBuffer {
+            byte[] key;
+            int keyLength;
+            Object[] objects;
+            boolean empty = true;
+            final BytesWritable partialKey = new BytesWritable();
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            return new BinKeyAgg();
+        }
+
+        @Override
+        public void reset(AggregationBuffer agg) throws HiveException {
+            ((BinKeyAgg) agg).empty = true;
+        }
+
+        /*处理一行数据：先编码键列，只有键更大时才拷贝整行*/
+        @Override
+        public void iterate(AggregationBuffer agg, Object[] parameters) throws HiveException {
+            if (metrics != null) {
+                metrics.rowsIterated++;
+            }
+            BinKeyAgg binagg = (BinKeyAgg) agg;
+            // parameters[0] 是 n，行从 parameters[1] 开始
+            System.arraycopy(parameters, 1, keyFields, 0, keyCount);
+            keyOutput.reset();
+            try {
+                BinarySortableSerDe.serializeStruct(keyOutput, keyFields, keyOIs, sortOrders, nullMarkers, notNullMarkers);
+            } catch (SerDeException e) {
+                throw new HiveException(e);
+            }
+            if (!offer(binagg, keyOutput.getData(), 0, keyOutput.getLength())) {
+                return;
+            }
+            int length = inputOIs.length;
+            Object[] objects = binagg.objects;
+            for (int i = 0; i < length; i++) {
+                objects[i] = ObjectInspectorUtils.copyToStandardObject(parameters[i + 1], inputOIs[i]);
+            }
+        }
+
+        /* 返回部分聚合数据 struct<key, col0, ...> */
+        @Override
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            BinKeyAgg binagg = (BinKeyAgg) agg;
+            if (binagg.empty) {
+                return null;
+            }
+            Object[] partial = new Object[binagg.objects.length + 1];
+            binagg.partialKey.set(binagg.key, 0, binagg.keyLength);
+            partial[0] = binagg.partialKey;
+            System.arraycopy(binagg.objects, 0, partial, 1, binagg.objects.length);
+            return partial;
+        }
+
+        /*只取出 key 字段比较字节，LazyBinaryStruct 只会反序列化这一个字段*/
+        @Override
+        public void merge(AggregationBuffer agg, Object partial) throws HiveException {
+            if (partial == null) {
+                return;
+            }
+            if (metrics != null) {
+                metrics.merges++;
+            }
+            BinKeyAgg binagg = (BinKeyAgg) agg;
+            BytesWritable key = partialKeyOI.getPrimitiveWritableObject(
+                    partialOI.getStructFieldData(partial, partialFields.get(0)));
+            if (!offer(binagg, key.getBytes(), 0, key.getLength())) {
+                return;
+            }
+            Object[] objects = binagg.objects;
+            for (int i = 0; i < objects.length; i++) {
+                objects[i] = ObjectInspectorUtils.copyToStandardObject(
+                        partialOI.getStructFieldData(partial, partialFields.get(i + 1)), inputOIs[i]);
+            }
+        }
+
+        /*生成最终结果*/
+        @Override
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            BinKeyAgg binagg = (BinKeyAgg) agg;
+            if (metrics != null) {
+                metrics.distinctKeys++;
+                metrics.maybeFlush();
+            }
+            if (binagg.empty) {
+                return null;
+            }
+            return Arrays.asList(binagg.objects);
+        }
+
+        /**
+         * 键比当前最大行的键大时，把键拷贝进缓存。
+         *
+         * @return 是否成为新的最大行，是的话调用方接着填 objects
+         */
+        private boolean offer(BinKeyAgg binagg, byte[] key, int start, int length) {
+            if (!binagg.empty
+                    && WritableComparator.compareBytes(binagg.key, 0, binagg.keyLength, key, start, length) >= 0) {
+                return false;
+            }
+            if (binagg.key == null || binagg.key.length < length) {
+                binagg.key = new byte[Math.max(length, 16)];
+            }
+            System.arraycopy(key, start, binagg.key, 0, length);
+            binagg.keyLength = length;
+            if (binagg.objects == null || binagg.objects.length != inputOIs.length) {
+                binagg.objects = new Object[inputOIs.length];
+            }
+            binagg.empty = false;
+            if (metrics != null) {
+                metrics.newMax++;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.ISupportStreamingModeForWindowing;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * maxrow 在 ROWS 窗口上的流式 evaluator，由 {@link GenericUDAFMaxRow.GenericUDAFMaxRowEvaluator#getWindowingEvaluator} 创建。
+ * 用单调队列保存窗口里还可能成为最大值的行：从队头到队尾第一列严格递减，队头就是窗口的结果。
+ * 新行进来时先从队尾弹出第一列比它小的行，它们在新行离开窗口之前都不可能再是最大值；
+ * 窗口开头移过队头时从队头弹出。每一行只拷贝一次、进出队列各一次，均摊每行 O(1) 次比较，
+ * 不会像默认方式那样对每一行把整个窗口重新聚合一遍。
+ *
+ * 第一列相等时保留先进窗口的行，和 maxrow 的聚合结果一致。
+ * 队列里的行一旦拷贝就不再修改，结果直接引用它们，Hive 缓存结果到之后才输出也没有问题。
+ */
+public class GenericUDAFMaxRowWindowEvaluator extends GenericUDAFEvaluator implements ISupportStreamingModeForWindowing {
+
+    private final GenericUDAFMaxRow.GenericUDAFMaxRowEvaluator wrapped;
+    private final StreamingFrame frame;
+
+    /**
+     * @param wrapped 已经按 COMPLETE 模式 init() 过的 evaluator，用它的 inputOIs 和 outputOIs 拷贝、比较行
+     * @param frame
+     */
+    GenericUDAFMaxRowWindowEvaluator(GenericUDAFMaxRow.GenericUDAFMaxRowEvaluator wrapped, StreamingFrame frame) {
+        this.wrapped = wrapped;
+        this.frame = frame;
+        // 和 GenericUDAFMapWindowEvaluator 一样，aggregate() 和 evaluate() 要靠 mode 转给 iterate() 和 terminate()
+        try {
+            super.init(Mode.COMPLETE, null);
+        } catch (HiveException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /* 队列里的一行：行号和拷贝成标准对象的各列 */
+    static class Candidate {
+        final int row;
+        final Object[] objects;
+
+        Candidate(int row, Object[] objects) {
+            this.row = row;
+            this.objects = objects;
+        }
+    }
+
+    static class WindowAgg extends AbstractAggregationBuffer {
+        final ArrayDeque<Candidate> candidates = new ArrayDeque<Candidate>();
+        final ArrayDeque<Object> results = new ArrayDeque<Object>();
+        int rows;
+    }
+
+    @Override
+    public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
+        throw new HiveException(getClass().getSimpleName() + ": init not supported");
+    }
+
+    @Override
+    public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+        return new WindowAgg();
+    }
+
+    @Override
+    public void reset(AggregationBuffer agg) throws HiveException {
+        WindowAgg wa = (WindowAgg) agg;
+        wa.candidates.clear();
+        wa.results.clear();
+        wa.rows = 0;
+    }
+
+    /**
+     * 第 i 行入队，此后第 i - following 行的窗口就完整了。
+     */
+    @Override
+    public void iterate(AggregationBuffer agg, Object[] parameters) throws HiveException {
+        WindowAgg wa = (WindowAgg) agg;
+        ObjectInspector[] inputOIs = wrapped.inputOIs;
+        ObjectInspector[] outputOIs = wrapped.outputOIs;
+        ArrayDeque<Candidate> candidates = wa.candidates;
+        // 先比较再拷贝，队尾比新行小的行直接丢掉
+        while (!candidates.isEmpty() && ObjectInspectorUtils.compare(
+                candidates.peekLast().objects[0], outputOIs[0], parameters[0], inputOIs[0]) < 0) {
+            candidates.pollLast();
+        }
+        int length = parameters.length;
+        Object[] objects = new Object[length];
+        for (int i = 0; i < length; i++) {
+            objects[i] = ObjectInspectorUtils.copyToStandardObject(parameters[i], inputOIs[i]);
+        }
+        int i = wa.rows++;
+        candidates.addLast(new Candidate(i, objects));
+        if (i >= frame.following) {
+            wa.results.add(result(wa, i - frame.following));
+        }
+    }
+
+    /**
+     * 分区结束，最后 following 行的窗口到分区末尾为止，依次算出它们的结果。
+     */
+    @Override
+    public Object terminate(AggregationBuffer agg) throws HiveException {
+        WindowAgg wa = (WindowAgg) agg;
+        for (int r = Math.max(0, wa.rows - frame.following); r < wa.rows; r++) {
+            wa.results.add(result(wa, r));
+        }
+        return null;
+    }
+
+    /* 弹出已经在第 row 行的窗口开头之前的行，队头就是第 row 行的结果 */
+    private Object result(WindowAgg wa, int row) {
+        int first = frame.firstRow(row);
+        ArrayDeque<Candidate> candidates = wa.candidates;
+        while (!candidates.isEmpty() && candidates.peekFirst().row < first) {
+            candidates.pollFirst();
+        }
+        // 窗口里至少有第 row 行，它不在队列里只可能是被之后更大的行弹出了，所以队列不会为空
+        return Arrays.asList(candidates.peekFirst().objects);
+    }
+
+    /**
+     * @return 下一行的结果，还没有算出来时返回 null
+     */
+    @Override
+    public Object getNextResult(AggregationBuffer agg) throws HiveException {
+        return ((WindowAgg) agg).results.poll();
+    }
+
+    @Override
+    public int getRowsRemainingAfterTerminate() throws HiveException {
+        return frame.following;
+    }
+
+    @Override
+    public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+        throw new HiveException(getClass().getSimpleName() + ": terminatePartial not supported");
+    }
+
+    @Override
+    public void merge(AggregationBuffer agg, Object partial) throws HiveException {
+        throw new HiveException(getClass().getSimpleName() + ": merge not supported");
+    }
+}
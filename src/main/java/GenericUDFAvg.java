@@ -1,6 +1,7 @@
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
@@ -8,9 +9,12 @@ import org.apache.hadoop.hive.serde2.objectinspector.MapObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.DoubleObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.IntObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 
-import java.util.*;
+import java.io.IOException;
+import java.util.Map;
 
 @Description(
         name = "fp_avg",
@@ -21,6 +25,38 @@ public class GenericUDFAvg extends GenericUDF {
     static final Log LOG = LogFactory.getLog(GenericUDFAvg.class.getName());
 
     private MapObjectInspector mapOI;
+    private DoubleObjectInspector keyOI;
+    /* 值是 int 或 bigint，二者只有一个不为 null */
+    private IntObjectInspector intValueOI;
+    private LongObjectInspector longValueOI;
+
+    /* 输入是 LazyBinaryMap 时直接扫描它的字节，否则为 null */
+    private LazyBinaryMapScanner scanner;
+
+    private final FingerprintAverage average = new FingerprintAverage();
+    private final DoubleWritable result = new DoubleWritable();
+
+    /* 未开启 udaf.demo.metrics.enabled 时为 null */
+    private AggregationMetrics metrics;
+
+    /* 未设置 udaf.demo.fp_avg.cache.entries 时为 null */
+    private FingerprintAverageCache cache;
+
+    @Override
+    public void configure(MapredContext context) {
+        metrics = AggregationMetrics.create(context, "fp_avg");
+        cache = FingerprintAverageCache.create(context);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (metrics != null) {
+            metrics.flush();
+        }
+        if (cache != null) {
+            LOG.info(cache);
+        }
+    }
 
     /**
      * 这个方法只调用一次，并且在evaluate()方法之前调用。
@@ -43,8 +79,19 @@ public class GenericUDFAvg extends GenericUDF {
 
         mapOI = (MapObjectInspector) arguments[0];
 
-        if (!(mapOI.getMapKeyObjectInspector() instanceof DoubleObjectInspector) || !(mapOI.getMapValueObjectInspector() instanceof IntObjectInspector)) {
-            throw new UDFArgumentException("The map must be type of <Double, Integer>");
+        ObjectInspector valueOI = mapOI.getMapValueObjectInspector();
+        if (!(mapOI.getMapKeyObjectInspector() instanceof DoubleObjectInspector)
+                || !(valueOI instanceof IntObjectInspector || valueOI instanceof LongObjectInspector)) {
+            throw new UDFArgumentException("The map must be type of <Double, Integer> or <Double, Long>");
+        }
+        keyOI = (DoubleObjectInspector) mapOI.getMapKeyObjectInspector();
+        if (valueOI instanceof IntObjectInspector) {
+            intValueOI = (IntObjectInspector) valueOI;
+        } else {
+            longValueOI = (LongObjectInspector) valueOI;
+        }
+        if (LazyBinaryMapScanner.isSupported(mapOI)) {
+            scanner = new LazyBinaryMapScanner();
         }
 
         return PrimitiveObjectInspectorFactory.writableDoubleObjectInspector;
@@ -59,47 +106,57 @@ public class GenericUDFAvg extends GenericUDF {
      */
     public Object evaluate(DeferredObject[] arguments) throws HiveException {
 
-        // 通过 ObjectInspector 获取参数的值
-        Map<Double, Integer> map = (HashMap<Double, Integer>) mapOI.getMap(arguments[0].get());
-
-        // 如果 Map 大小为 1，就不需要排序了
-        if (map.size() == 1) {
-            double result = map.keySet().iterator().next();
-            return PrimitiveObjectInspectorFactory.writableDoubleObjectInspector.create(result);
+        Object o = arguments[0].get();
+        if (o == null) {
+            return null;
         }
 
-        // 值的总和
-        int sum = 0;
-        Iterator<Integer> i = map.values().iterator();
-        while (i.hasNext()) {
-            sum += i.next();
+        average.clear();
+        if (scanner == null || !scanner.scan(o, longValueOI != null, average)) {
+            readMap(o);
+        }
+        if (metrics != null) {
+            metrics.rowsIterated++;
+            metrics.distinctKeys += average.size();
+            metrics.maybeFlush();
+        }
+        if (average.size() == 0) {
+            return null;
         }
 
-        // 将 Map 根据 value 从大到小排序成 List
-        List<Map.Entry<Double, Integer>> list = new ArrayList<Map.Entry<Double, Integer>>(map.entrySet());
-        Collections.sort(list, new Comparator<Map.Entry<Double, Integer>>() {
-            public int compare(Map.Entry<Double, Integer> o1, Map.Entry<Double, Integer> o2) {
-                return o2.getValue().compareTo(o1.getValue());
-            }
-        });
-
-        // 取 80% 的量
-        int sum_8 = (int) Math.ceil(sum * 0.8);
-        int last = sum_8;
-        double result = 0;
-        for (Map.Entry<Double, Integer> e : list) {
-            double k = e.getKey();
-            int v = e.getValue();
-            if (v <= last) {
-                result += v * k;
-                last -= v;
+        if (cache == null) {
+            result.set(average.compute());
+            return result;
+        }
+        FingerprintAverageCache.Entry cached = cache.get(average);
+        if (metrics != null) {
+            if (cached != null) {
+                metrics.cacheHits++;
             } else {
-                result += last * k;
-                break;
+                metrics.cacheMisses++;
             }
         }
+        if (cached != null) {
+            result.set(cached.result);
+        } else {
+            result.set(average.compute());
+            cache.put(average, result.get());
+        }
+        return result;
+    }
 
-        return PrimitiveObjectInspectorFactory.writableDoubleObjectInspector.create(result / sum_8);
+    /* 通过 ObjectInspector 把键值对读进可复用的原始类型数组，不依赖 map 的具体实现类 */
+    private void readMap(Object o) {
+        for (Map.Entry<?, ?> e : mapOI.getMap(o).entrySet()) {
+            Object k = e.getKey();
+            Object v = e.getValue();
+            if (k != null && v != null) {
+                long count = intValueOI != null ? intValueOI.get(v) : longValueOI.get(v);
+                if (count > 0) {
+                    average.add(keyOI.get(k), count);
+                }
+            }
+        }
     }
 
     /**
@@ -0,0 +1,104 @@
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.serde2.lazy.ByteArrayRef;
+import org.apache.hadoop.hive.serde2.lazybinary.LazyBinaryMap;
+import org.apache.hadoop.hive.serde2.lazybinary.LazyBinaryNonPrimitive;
+import org.apache.hadoop.hive.serde2.lazybinary.LazyBinaryUtils;
+import org.apache.hadoop.hive.serde2.lazybinary.objectinspector.LazyBinaryMapObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+
+import java.lang.reflect.Field;
+
+/**
+ * 直接扫描 LazyBinaryMap 的序列化字节，把 map&lt;double, int/bigint&gt; 的键值对读进 {@link FingerprintAverage}。
+ * LazyBinaryMapObjectInspector.getMap() 会先把整个 map 解析成一个 LinkedHashMap，
+ * 每个条目都要创建 LazyBinary 的键、值对象和一个 Entry；这里一个对象都不创建。
+ * shuffle 之后的中间结果和 SequenceFile/RCFile（LazyBinary 格式）里存的 map 都是 LazyBinaryMap。
+ *
+ * LazyBinary 的 map 格式：[条目数 vint][null 标记，每个条目的键、值各占一位，1 表示不为 null][键][值]...
+ * double 键是 8 字节大端，int 值是 vint，bigint 值是 vlong，null 的键或值不占字节。
+ *
+ * LazyBinaryMap 没有公开它引用的字节，只能反射读取 LazyBinaryNonPrimitive 的 bytes 和 start 字段。
+ * 字段在类加载时查找一次，找不到（比如 Hive 版本不同）时 {@link #isSupported} 返回 false，调用方照旧走 ObjectInspector。
+ * 一个实例在多行之间复用，不是线程安全的。
+ */
+public class LazyBinaryMapScanner {
+
+    static final Log LOG = LogFactory.getLog(LazyBinaryMapScanner.class.getName());
+
+    private static final Field BYTES = field("bytes");
+    private static final Field START = field("start");
+
+    private final LazyBinaryUtils.VInt vInt = new LazyBinaryUtils.VInt();
+    private final LazyBinaryUtils.VLong vLong = new LazyBinaryUtils.VLong();
+
+    private static Field field(String name) {
+        try {
+            Field field = LazyBinaryNonPrimitive.class.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            LOG.warn("LazyBinaryNonPrimitive." + name + " is not accessible, fp_avg falls back to getMap()", e);
+            return null;
+        }
+    }
+
+    /**
+     * @param mapOI 已经检查过键是 double、值是 int 或 bigint 的 map OI
+     */
+    static boolean isSupported(ObjectInspector mapOI) {
+        return BYTES != null && START != null && mapOI instanceof LazyBinaryMapObjectInspector;
+    }
+
+    /**
+     * 把 map 里键和值都不为 null、计数大于 0 的条目加到 average 里。
+     *
+     * @param map        LazyBinaryMapObjectInspector 对应的 map 对象
+     * @param longValues 值是 bigint 时为 true，int 时为 false
+     * @return 对象不是 LazyBinaryMap 或者读不到字节时返回 false，average 没有被改动
+     */
+    boolean scan(Object map, boolean longValues, FingerprintAverage average) {
+        if (!(map instanceof LazyBinaryMap)) {
+            return false;
+        }
+        byte[] bytes;
+        int start;
+        try {
+            bytes = ((ByteArrayRef) BYTES.get(map)).getData();
+            start = START.getInt(map);
+        } catch (IllegalAccessException e) {
+            return false;
+        }
+
+        LazyBinaryUtils.readVInt(bytes, start, vInt);
+        int size = vInt.value;
+        int nullBytes = start + vInt.length;
+        int p = nullBytes + (size * 2 + 7) / 8;
+        for (int i = 0; i < size; i++) {
+            // 第 i 个条目的键在第 i / 4 个字节的第 (i % 4) * 2 位，值在下一位
+            int bits = bytes[nullBytes + (i >>> 2)] >>> ((i & 3) << 1);
+            boolean hasKey = (bits & 1) != 0;
+            double key = 0;
+            if (hasKey) {
+                key = Double.longBitsToDouble(LazyBinaryUtils.byteArrayToLong(bytes, p));
+                p += 8;
+            }
+            if ((bits & 2) != 0) {
+                long count;
+                if (longValues) {
+                    LazyBinaryUtils.readVLong(bytes, p, vLong);
+                    count = vLong.value;
+                    p += vLong.length;
+                } else {
+                    LazyBinaryUtils.readVInt(bytes, p, vInt);
+                    count = vInt.value;
+                    p += vInt.length;
+                }
+                if (hasKey && count > 0) {
+                    average.add(key, count);
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,255 @@
+import org.apache.hadoop.hive.ql.util.JavaDataModel;
+
+import java.util.Arrays;
+
+/**
+ * 以 long 为键、long 为计数值的开放寻址哈希表（线性探测）。
+ * 键和计数分别存放在两个原始类型数组中，iterate() 时不会产生任何装箱对象，
+ * 每个不同的键只占用两个 long 槽位，而不是 HashMap 的 Entry + Double + Integer。
+ * 计数为 0 的槽位即为空槽，所以调用方不能写入 0 计数。
+ * double 类型的键先通过 {@link #fromDouble(double)} 转成保序的 long 再存入。
+ */
+public class LongCountTable {
+
+    private static final int MIN_CAPACITY = 16;
+
+    /* 装载因子取 0.5，线性探测在这个范围内的平均探测长度很短 */
+    private static final int LOAD_FACTOR_SHIFT = 1;
+
+    private long[] keys;
+    private long[] counts;
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    public LongCountTable() {
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        counts = new long[capacity];
+        mask = capacity - 1;
+        resizeAt = capacity >>> LOAD_FACTOR_SHIFT;
+    }
+
+    /**
+     * 将 key 的计数加上 delta，key 不存在时新建。
+     *
+     * @param key
+     * @param delta 必须大于 0
+     */
+    public void add(long key, long delta) {
+        int slot = hash(key) & mask;
+        while (counts[slot] != 0) {
+            if (keys[slot] == key) {
+                counts[slot] += delta;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        counts[slot] = delta;
+        if (++size > resizeAt) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    /**
+     * @param key
+     * @return key 的计数，不存在时返回 0
+     */
+    public long get(long key) {
+        int slot = hash(key) & mask;
+        while (counts[slot] != 0) {
+            if (keys[slot] == key) {
+                return counts[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    /**
+     * 删除 key。线性探测不能简单置空，要把后面同一探测链上的元素往回挪，保证 get() 仍然能找到它们。
+     *
+     * @param key
+     * @return 被删除的计数，不存在时返回 0
+     */
+    public long remove(long key) {
+        int slot = hash(key) & mask;
+        while (counts[slot] != 0) {
+            if (keys[slot] == key) {
+                long removed = counts[slot];
+                shiftBack(slot);
+                size--;
+                return removed;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    private void shiftBack(int hole) {
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & mask;
+            if (counts[slot] == 0) {
+                break;
+            }
+            int home = hash(keys[slot]) & mask;
+            // home 不在 (hole, slot] 这个环形区间内时，才能挪到 hole
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                keys[hole] = keys[slot];
+                counts[hole] = counts[slot];
+                hole = slot;
+            }
+        }
+        counts[hole] = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 清空表。容量已经扩得很大时直接释放，避免一个大分组之后一直占着内存。
+     */
+    public void clear() {
+        if (keys.length > MIN_CAPACITY << 4) {
+            allocate(MIN_CAPACITY);
+        } else {
+            Arrays.fill(counts, 0L);
+        }
+        size = 0;
+    }
+
+    /* 槽位遍历：for (int i = 0; i < capacity(); i++) if (isUsed(i)) ... */
+    public int capacity() {
+        return keys.length;
+    }
+
+    public boolean isUsed(int slot) {
+        return counts[slot] != 0;
+    }
+
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    public long countAt(int slot) {
+        return counts[slot];
+    }
+
+    /**
+     * @return 按槽位顺序（无序）遍历所有键的游标，遍历期间不能修改表
+     */
+    public CountCursor cursor() {
+        return new CountCursor() {
+            private int slot = -1;
+
+            public boolean next() {
+                while (++slot < keys.length) {
+                    if (counts[slot] != 0) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            public long key() {
+                return keys[slot];
+            }
+
+            public long count() {
+                return counts[slot];
+            }
+        };
+    }
+
+    /**
+     * @return 按键升序排列的所有键
+     */
+    public long[] sortedKeys() {
+        long[] sorted = new long[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (counts[i] != 0) {
+                sorted[n++] = keys[i];
+            }
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * @return 按键升序遍历所有键的游标，只额外分配一个排好序的键数组，遍历期间不能修改表
+     */
+    public CountCursor sortedCursor() {
+        final long[] sorted = sortedKeys();
+        return new CountCursor() {
+            private int i = -1;
+
+            public boolean next() {
+                return ++i < sorted.length;
+            }
+
+            public long key() {
+                return sorted[i];
+            }
+
+            public long count() {
+                return get(sorted[i]);
+            }
+        };
+    }
+
+    /**
+     * @return 表占用的堆内存字节数，供 AggregationBuffer.estimate() 使用
+     */
+    public int estimate() {
+        JavaDataModel model = JavaDataModel.get();
+        return model.object() + model.ref() * 2 + model.primitive1() * 3
+                + model.lengthForLongArrayOfSize(keys.length) * 2;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldCounts = counts;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldCounts[i] != 0) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (counts[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                counts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    /* MurmurHash3 的 fmix64，保证低位也充分混合 */
+    static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /**
+     * 把 double 转成与其大小顺序一致的 long：正数保持不变，负数翻转除符号位以外的所有位。
+     * 这个变换是自反的，{@link #toDouble(long)} 用同样的运算还原。
+     * doubleToLongBits 会把所有 NaN 归一，所以和 Double.equals 的判等语义相同。
+     */
+    public static long fromDouble(double d) {
+        long bits = Double.doubleToLongBits(d);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    public static double toDouble(long key) {
+        return Double.longBitsToDouble(key ^ ((key >> 63) & Long.MAX_VALUE));
+    }
+}
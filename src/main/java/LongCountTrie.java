@@ -0,0 +1,213 @@
+/**
+ * 不可变的 long → long 计数表：以键的 64 位哈希为路径的 32 叉字典树（hash array mapped trie）。
+ * 每次修改只复制从根到叶子这一条路径上的节点，返回新的版本，旧版本不变并和新版本共享其余节点，
+ * 所以同时保留很多个版本也不需要拷贝整个表。流式窗口的 map_count 每一行输出一个版本，
+ * 见 {@link GenericUDAFMapWindowEvaluator}。
+ *
+ * 哈希是 fmix64 的全部 64 位，fmix64 是双射，不同的键哈希一定不同，不需要处理冲突；
+ * 树最多 13 层，1 万个键大约 3 层。计数为 0 的键会被删除，计数不能小于 0。
+ */
+public final class LongCountTrie {
+
+    public static final LongCountTrie EMPTY = new LongCountTrie(null, 0);
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    /* 64 位哈希每层用 5 位，最后一层只剩 4 位 */
+    private static final int MAX_DEPTH = (64 + BITS - 1) / BITS;
+
+    /* 内部节点：bitmap 的第 i 位表示这一层哈希取 i 的孩子存在，孩子按 i 的顺序紧凑地存在 children 里 */
+    private static final class Node {
+        final int bitmap;
+        final Object[] children;
+
+        Node(int bitmap, Object[] children) {
+            this.bitmap = bitmap;
+            this.children = children;
+        }
+    }
+
+    private static final class Leaf {
+        final long key;
+        final long count;
+
+        Leaf(long key, long count) {
+            this.key = key;
+            this.count = count;
+        }
+    }
+
+    /* Node 或 Leaf，空表时为 null */
+    private final Object root;
+    private final int size;
+
+    private LongCountTrie(Object root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return key 的计数，不存在时返回 0
+     */
+    public long get(long key) {
+        long hash = hash(key);
+        Object node = root;
+        for (int shift = 0; node instanceof Node; shift += BITS) {
+            Node n = (Node) node;
+            int bit = 1 << ((int) (hash >>> shift) & MASK);
+            if ((n.bitmap & bit) == 0) {
+                return 0;
+            }
+            node = n.children[Integer.bitCount(n.bitmap & (bit - 1))];
+        }
+        return node != null && ((Leaf) node).key == key ? ((Leaf) node).count : 0;
+    }
+
+    /**
+     * @param delta 可以是负数，加完之后为 0 时删除 key
+     * @return key 的计数加上 delta 之后的新版本，这个版本不变
+     * @throws IllegalArgumentException 加完之后计数小于 0
+     */
+    public LongCountTrie add(long key, long delta) {
+        long count = get(key) + delta;
+        if (count < 0) {
+            throw new IllegalArgumentException("Count of key " + key + " would become " + count);
+        }
+        long hash = hash(key);
+        if (count == 0) {
+            if (count == delta) {
+                return this;
+            }
+            return new LongCountTrie(remove(root, hash, 0), size - 1);
+        }
+        return new LongCountTrie(put(root, hash, 0, new Leaf(key, count)), count == delta ? size + 1 : size);
+    }
+
+    private static Object put(Object node, long hash, int shift, Leaf leaf) {
+        if (node == null) {
+            return leaf;
+        }
+        if (node instanceof Leaf) {
+            Leaf old = (Leaf) node;
+            if (old.key == leaf.key) {
+                return leaf;
+            }
+            return split(old, hash(old.key), leaf, hash, shift);
+        }
+        Node n = (Node) node;
+        int bit = 1 << ((int) (hash >>> shift) & MASK);
+        int i = Integer.bitCount(n.bitmap & (bit - 1));
+        if ((n.bitmap & bit) != 0) {
+            Object[] children = n.children.clone();
+            children[i] = put(children[i], hash, shift + BITS, leaf);
+            return new Node(n.bitmap, children);
+        }
+        Object[] children = new Object[n.children.length + 1];
+        System.arraycopy(n.children, 0, children, 0, i);
+        children[i] = leaf;
+        System.arraycopy(n.children, i, children, i + 1, n.children.length - i);
+        return new Node(n.bitmap | bit, children);
+    }
+
+    /* 两个叶子在 shift 之前的哈希都相同，往下建节点直到它们分开；哈希不同，最迟在最后一层分开 */
+    private static Node split(Leaf a, long hashA, Leaf b, long hashB, int shift) {
+        int ia = (int) (hashA >>> shift) & MASK;
+        int ib = (int) (hashB >>> shift) & MASK;
+        if (ia == ib) {
+            return new Node(1 << ia, new Object[]{split(a, hashA, b, hashB, shift + BITS)});
+        }
+        return new Node((1 << ia) | (1 << ib), ia < ib ? new Object[]{a, b} : new Object[]{b, a});
+    }
+
+    /* 删除一个一定存在的键；节点只剩一个叶子时用叶子代替节点，保持树尽量浅 */
+    private static Object remove(Object node, long hash, int shift) {
+        if (node instanceof Leaf) {
+            return null;
+        }
+        Node n = (Node) node;
+        int bit = 1 << ((int) (hash >>> shift) & MASK);
+        int i = Integer.bitCount(n.bitmap & (bit - 1));
+        Object child = remove(n.children[i], hash, shift + BITS);
+        if (child != null) {
+            if (n.children.length == 1 && child instanceof Leaf) {
+                return child;
+            }
+            Object[] children = n.children.clone();
+            children[i] = child;
+            return new Node(n.bitmap, children);
+        }
+        if (n.children.length == 1) {
+            return null;
+        }
+        if (n.children.length == 2 && n.children[1 - i] instanceof Leaf) {
+            return n.children[1 - i];
+        }
+        Object[] children = new Object[n.children.length - 1];
+        System.arraycopy(n.children, 0, children, 0, i);
+        System.arraycopy(n.children, i + 1, children, i, children.length - i);
+        return new Node(n.bitmap & ~bit, children);
+    }
+
+    /**
+     * @return 按哈希顺序遍历所有键的游标
+     */
+    public CountCursor cursor() {
+        return new CountCursor() {
+            private final Node[] path = new Node[MAX_DEPTH];
+            /* path[d] 下一个要访问的孩子 */
+            private final int[] next = new int[MAX_DEPTH];
+            private int depth = -1;
+            private Leaf leaf;
+            private boolean started;
+
+            public boolean next() {
+                if (!started) {
+                    started = true;
+                    return descend(root);
+                }
+                while (depth >= 0) {
+                    Node n = path[depth];
+                    if (next[depth] < n.children.length) {
+                        return descend(n.children[next[depth]++]);
+                    }
+                    depth--;
+                }
+                return false;
+            }
+
+            /* 从 node 一直走到最左边的叶子 */
+            private boolean descend(Object node) {
+                while (node instanceof Node) {
+                    Node n = (Node) node;
+                    path[++depth] = n;
+                    next[depth] = 1;
+                    node = n.children[0];
+                }
+                leaf = (Leaf) node;
+                return leaf != null;
+            }
+
+            public long key() {
+                return leaf.key;
+            }
+
+            public long count() {
+                return leaf.count;
+            }
+        };
+    }
+
+    /* 和 LongCountTable#hash 一样是 MurmurHash3 的 fmix64，但保留全部 64 位 */
+    static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
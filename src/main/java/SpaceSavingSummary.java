@@ -0,0 +1,293 @@
+import org.apache.hadoop.hive.ql.util.JavaDataModel;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Space-Saving 频繁项摘要（Metwally 等），最多保留 capacity 个键，内存与输入基数无关。
+ * 每个键记录估计计数 count 和误差 error，真实计数落在 [count - error, count] 之间。
+ * 未被保留的键真实计数不超过 {@link #minCount()}。
+ *
+ * 计数器放在原始类型数组里，用按 count 排序的最小堆找出要替换的计数器，
+ * 用 LongCountTable 做键到槽位的索引（存的是槽位 + 1，因为 0 代表空槽）。
+ * 键和 LongCountTable 一样，double 需要先经过 {@link LongCountTable#fromDouble(double)}。
+ */
+public class SpaceSavingSummary {
+
+    private final int capacity;
+    private final long[] keys;
+    private final long[] counts;
+    private final long[] errors;
+    /* heap[i] 是槽位号，按 counts 组成最小堆；pos[slot] 是槽位在堆中的下标 */
+    private final int[] heap;
+    private final int[] pos;
+    private final LongCountTable index = new LongCountTable();
+    private int size;
+    private long total;
+
+    public SpaceSavingSummary(int capacity) {
+        this.capacity = capacity;
+        keys = new long[capacity];
+        counts = new long[capacity];
+        errors = new long[capacity];
+        heap = new int[capacity];
+        pos = new int[capacity];
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return 所有输入的总计数
+     */
+    public long total() {
+        return total;
+    }
+
+    /**
+     * @return 未被保留的键的计数上界，摘要没满时为 0
+     */
+    public long minCount() {
+        return size < capacity ? 0 : counts[heap[0]];
+    }
+
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    public long countAt(int slot) {
+        return counts[slot];
+    }
+
+    public long errorAt(int slot) {
+        return errors[slot];
+    }
+
+    public void clear() {
+        index.clear();
+        size = 0;
+        total = 0;
+    }
+
+    /**
+     * 处理一次出现。键已存在时计数加一；摘要未满时新增；否则替换计数最小的键，
+     * 新键继承它的计数作为误差。
+     */
+    public void offer(long key) {
+        total++;
+        long found = index.get(key);
+        if (found != 0) {
+            int slot = (int) found - 1;
+            counts[slot]++;
+            siftDown(pos[slot]);
+        } else if (size < capacity) {
+            int slot = size++;
+            keys[slot] = key;
+            counts[slot] = 1;
+            errors[slot] = 0;
+            index.add(key, slot + 1);
+            heap[slot] = slot;
+            pos[slot] = slot;
+            siftUp(slot);
+        } else {
+            int slot = heap[0];
+            index.remove(keys[slot]);
+            long min = counts[slot];
+            keys[slot] = key;
+            errors[slot] = min;
+            counts[slot] = min + 1;
+            index.add(key, slot + 1);
+            siftDown(0);
+        }
+    }
+
+    /**
+     * 合并另一个摘要（Berinde/Agarwal 的可合并 Space-Saving）：
+     * 两边都有的键计数和误差相加；只在一边出现的键加上另一边的 minCount()，
+     * 然后只保留计数最大的 capacity 个。合并后的误差界仍然成立。
+     */
+    public void merge(SpaceSavingSummary other) {
+        long minThis = minCount();
+        long minOther = other.minCount();
+        int n = size + other.size;
+        long[] mKeys = new long[n];
+        long[] mCounts = new long[n];
+        long[] mErrors = new long[n];
+        int m = 0;
+        for (int i = 0; i < size; i++) {
+            mKeys[m] = keys[i];
+            mCounts[m] = counts[i] + minOther;
+            mErrors[m] = errors[i] + minOther;
+            m++;
+        }
+        for (int i = 0; i < other.size; i++) {
+            long found = index.get(other.keys[i]);
+            if (found != 0) {
+                int slot = (int) found - 1;
+                mCounts[slot] += other.counts[i] - minOther;
+                mErrors[slot] += other.errors[i] - minOther;
+            } else {
+                mKeys[m] = other.keys[i];
+                mCounts[m] = other.counts[i] + minThis;
+                mErrors[m] = other.errors[i] + minThis;
+                m++;
+            }
+        }
+        long mergedTotal = total + other.total;
+        load(mKeys, mCounts, mErrors, m);
+        total = mergedTotal;
+    }
+
+    /* 从 n 个候选中保留计数最大的 capacity 个，重建堆和索引 */
+    private void load(long[] cKeys, long[] cCounts, long[] cErrors, int n) {
+        Integer[] order = null;
+        int keep = Math.min(n, capacity);
+        if (n > capacity) {
+            order = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = i;
+            }
+            final long[] c = cCounts;
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    long ca = c[a];
+                    long cb = c[b];
+                    return ca > cb ? -1 : (ca == cb ? 0 : 1);
+                }
+            });
+        }
+        clear();
+        for (int i = 0; i < keep; i++) {
+            int from = order == null ? i : order[i];
+            keys[i] = cKeys[from];
+            counts[i] = cCounts[from];
+            errors[i] = cErrors[from];
+            index.add(keys[i], i + 1);
+            heap[i] = i;
+            pos[i] = i;
+        }
+        size = keep;
+        for (int i = (size >>> 1) - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    /**
+     * 编码成部分聚合结果：[capacity][total][n]，然后是按键升序的 [键][计数][误差]，
+     * 键的编码和 CountRun 一样是首个 zigzag、其余为增量的 varint。
+     */
+    public byte[] encode() {
+        long[] sorted = Arrays.copyOf(keys, size);
+        Arrays.sort(sorted);
+        ByteBuffer buf = ByteBuffer.allocate(30 + size * 30);
+        writeVLong(buf, capacity);
+        writeVLong(buf, total);
+        writeVLong(buf, size);
+        long prev = 0;
+        for (int i = 0; i < size; i++) {
+            long key = sorted[i];
+            int slot = (int) index.get(key) - 1;
+            writeVLong(buf, i == 0 ? (key << 1) ^ (key >> 63) : key - prev);
+            writeVLong(buf, counts[slot]);
+            writeVLong(buf, errors[slot]);
+            prev = key;
+        }
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    /**
+     * 解码 {@link #encode()} 的结果。
+     */
+    public static SpaceSavingSummary decode(ByteBuffer buf) {
+        buf = buf.duplicate();
+        SpaceSavingSummary summary = new SpaceSavingSummary((int) readVLong(buf));
+        long total = readVLong(buf);
+        int n = (int) readVLong(buf);
+        long[] cKeys = new long[n];
+        long[] cCounts = new long[n];
+        long[] cErrors = new long[n];
+        long key = 0;
+        for (int i = 0; i < n; i++) {
+            long v = readVLong(buf);
+            key = i == 0 ? (v >>> 1) ^ -(v & 1) : key + v;
+            cKeys[i] = key;
+            cCounts[i] = readVLong(buf);
+            cErrors[i] = readVLong(buf);
+        }
+        summary.load(cKeys, cCounts, cErrors, n);
+        summary.total = total;
+        return summary;
+    }
+
+    /**
+     * @return 摘要占用的堆内存字节数
+     */
+    public int estimate() {
+        JavaDataModel model = JavaDataModel.get();
+        return model.object() + model.ref() * 6 + model.primitive1() * 2 + model.primitive2()
+                + model.lengthForLongArrayOfSize(capacity) * 3 + model.lengthForIntArrayOfSize(capacity) * 2
+                + index.estimate();
+    }
+
+    private void siftUp(int i) {
+        int slot = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (counts[heap[parent]] <= counts[slot]) {
+                break;
+            }
+            heap[i] = heap[parent];
+            pos[heap[i]] = i;
+            i = parent;
+        }
+        heap[i] = slot;
+        pos[slot] = i;
+    }
+
+    private void siftDown(int i) {
+        int slot = heap[i];
+        while (true) {
+            int child = (i << 1) + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && counts[heap[child + 1]] < counts[heap[child]]) {
+                child++;
+            }
+            if (counts[heap[child]] >= counts[slot]) {
+                break;
+            }
+            heap[i] = heap[child];
+            pos[heap[i]] = i;
+            i = child;
+        }
+        heap[i] = slot;
+        pos[slot] = i;
+    }
+
+    private static void writeVLong(ByteBuffer buf, long v) {
+        while ((v & ~0x7FL) != 0) {
+            buf.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte) v);
+    }
+
+    private static long readVLong(ByteBuffer buf) {
+        long v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf.get();
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return v;
+    }
+}
@@ -0,0 +1,99 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * map_count 的计数缓存超过内存预算后溢写到本地临时文件的 run，每次溢写一个文件，格式就是 {@link CountRun}。
+ * 输出时用 FileChannel.map() 把所有文件只读映射进来，交给 {@link CountRunMerger} 和内存里剩下的计数一起归并，
+ * run 的字节由操作系统按页读入，不经过堆。
+ *
+ * 临时文件放在 java.io.tmpdir 下，YARN 的 task 会把它设成容器自己的工作目录。
+ * 文件在 {@link #clear()} 时删除；task 异常退出时靠 deleteOnExit() 兜底。
+ * 已经映射的 buffer 在文件删除后仍然可以读，直到被 GC 回收。
+ */
+public class SpilledRuns {
+
+    /* 写文件时攒够这么多字节写一次 */
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+    private final List<File> files = new ArrayList<File>();
+    private long bytes;
+
+    /**
+     * 把一个按键升序的游标写成一个新的 run 文件。
+     */
+    public void spill(CountCursor cursor) throws IOException {
+        File file = File.createTempFile("map_count", ".run");
+        file.deleteOnExit();
+        // 先登记再写，写到一半失败时 clear() 也能删掉
+        files.add(file);
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            CountRun.Writer writer = new CountRun.Writer();
+            writer.writePaddedVInt(0);
+            int size = 0;
+            while (cursor.next()) {
+                writer.add(cursor.key(), cursor.count());
+                size++;
+                if (writer.length() >= WRITE_BUFFER_SIZE) {
+                    writer.drainTo(channel);
+                }
+            }
+            writer.drainTo(channel);
+            bytes += channel.position();
+            // 回填条目数
+            CountRun.Writer header = new CountRun.Writer();
+            header.writePaddedVInt(size);
+            channel.position(0);
+            header.drainTo(channel);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return 每个文件一个只读映射的 run，关闭文件后映射仍然有效
+     */
+    public List<ByteBuffer> map() throws IOException {
+        List<ByteBuffer> runs = new ArrayList<ByteBuffer>(files.size());
+        for (File file : files) {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = in.getChannel();
+                runs.add(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } finally {
+                in.close();
+            }
+        }
+        return runs;
+    }
+
+    public boolean isEmpty() {
+        return files.isEmpty();
+    }
+
+    public int size() {
+        return files.size();
+    }
+
+    /* 所有文件的总字节数 */
+    public long bytes() {
+        return bytes;
+    }
+
+    /**
+     * 删除所有文件。
+     */
+    public void clear() {
+        for (File file : files) {
+            file.delete();
+        }
+        files.clear();
+        bytes = 0;
+    }
+}
@@ -0,0 +1,62 @@
+import org.apache.hadoop.hive.ql.parse.WindowingSpec.BoundarySpec;
+import org.apache.hadoop.hive.ql.parse.WindowingSpec.Direction;
+import org.apache.hadoop.hive.ql.plan.ptf.BoundaryDef;
+import org.apache.hadoop.hive.ql.plan.ptf.WindowFrameDef;
+
+/**
+ * 流式窗口 evaluator 支持的 ROWS 窗口：当前行之前 preceding 行到之后 following 行。
+ * 开头可以是 n PRECEDING、UNBOUNDED PRECEDING 或 CURRENT ROW，结尾可以是 CURRENT ROW 或 n FOLLOWING。
+ * 第 i 行进来之后，第 i - following 行的窗口就完整了。
+ */
+public class StreamingFrame {
+
+    /* preceding 取这个值表示 UNBOUNDED PRECEDING */
+    static final int UNBOUNDED = -1;
+
+    /* 需要缓存的行数上限，更大的窗口退回 Hive 的非流式计算 */
+    static final int MAX_WINDOW_ROWS = 1 << 24;
+
+    final int preceding;
+    final int following;
+
+    StreamingFrame(int preceding, int following) {
+        this.preceding = preceding;
+        this.following = following;
+    }
+
+    /**
+     * @return 窗口不受支持时返回 null，调用方的 getWindowingEvaluator() 应该跟着返回 null。
+     * Hive 只对 ROWS 窗口调用 getWindowingEvaluator()。
+     */
+    static StreamingFrame of(WindowFrameDef wFrmDef) {
+        BoundaryDef start = wFrmDef.getStart();
+        BoundaryDef end = wFrmDef.getEnd();
+        int preceding;
+        if (start.getDirection() == Direction.CURRENT) {
+            preceding = 0;
+        } else if (start.getDirection() == Direction.PRECEDING) {
+            preceding = start.getAmt() == BoundarySpec.UNBOUNDED_AMOUNT ? UNBOUNDED : start.getAmt();
+        } else {
+            return null;
+        }
+        int following;
+        if (end.getDirection() == Direction.CURRENT) {
+            following = 0;
+        } else if (end.getDirection() == Direction.FOLLOWING && end.getAmt() != BoundarySpec.UNBOUNDED_AMOUNT) {
+            following = end.getAmt();
+        } else {
+            return null;
+        }
+        if ((long) Math.max(preceding, 0) + following + 1 > MAX_WINDOW_ROWS) {
+            return null;
+        }
+        return new StreamingFrame(preceding, following);
+    }
+
+    /**
+     * @return 第 row 行的窗口的第一行，可能小于 0
+     */
+    int firstRow(int row) {
+        return preceding == UNBOUNDED ? 0 : row - preceding;
+    }
+}
@@ -0,0 +1,101 @@
+import org.apache.hadoop.hive.ql.parse.WindowingSpec.BoundarySpec;
+import org.apache.hadoop.hive.ql.parse.WindowingSpec.Direction;
+import org.apache.hadoop.hive.ql.plan.ptf.BoundaryDef;
+import org.apache.hadoop.hive.ql.plan.ptf.CurrentRowDef;
+import org.apache.hadoop.hive.ql.plan.ptf.RangeBoundaryDef;
+import org.apache.hadoop.hive.ql.plan.ptf.WindowFrameDef;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.ql.udf.generic.ISupportStreamingModeForWindowing;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * 按 Hive 流式窗口（WindowingTableFunction）的调用方式驱动 map_count 的窗口 evaluator：
+ * 每行 aggregate() 之后取 getNextResult()，分区结束时 evaluate()，再取剩下的结果。
+ * 所有结果都留到最后才检查，相当于 Hive 因为别的函数的窗口结尾更晚而缓存了结果。
+ */
+public class GenericUDAFMapWindowEvaluatorTest {
+
+    /* preceding 为负数表示 UNBOUNDED PRECEDING */
+    static WindowFrameDef frame(int preceding, int following) {
+        BoundaryDef start = preceding == 0 ? new CurrentRowDef()
+                : new RangeBoundaryDef(Direction.PRECEDING, preceding < 0 ? BoundarySpec.UNBOUNDED_AMOUNT : preceding);
+        BoundaryDef end = following == 0 ? new CurrentRowDef() : new RangeBoundaryDef(Direction.FOLLOWING, following);
+        return new WindowFrameDef(start, end);
+    }
+
+    /* rows[i] 是第 i 行的全部参数 */
+    static List<Object> stream(GenericUDAFEvaluator evaluator, WindowFrameDef frame, Object[][] rows) throws Exception {
+        GenericUDAFEvaluator streaming = evaluator.getWindowingEvaluator(frame);
+        assertNotNull(streaming);
+        ISupportStreamingModeForWindowing window = (ISupportStreamingModeForWindowing) streaming;
+        AggregationBuffer agg = streaming.getNewAggregationBuffer();
+        List<Object> results = new ArrayList<Object>();
+        for (Object[] row : rows) {
+            streaming.aggregate(agg, row);
+            Object result = window.getNextResult(agg);
+            if (result != null) {
+                results.add(result);
+            }
+        }
+        streaming.evaluate(agg);
+        for (int i = 0; i < window.getRowsRemainingAfterTerminate(); i++) {
+            Object result = window.getNextResult(agg);
+            if (result != null) {
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
+    @Test
+    public void testSlidingWindows() throws Exception {
+        Random random = new Random(5);
+        for (int preceding : new int[]{-1, 0, 1, 3, 10}) {
+            for (int following : new int[]{0, 1, 4}) {
+                for (int n : new int[]{0, 1, 2, 5, 50, 500}) {
+                    Double[] values = new Double[n];
+                    Object[][] rows = new Object[n][];
+                    for (int i = 0; i < n; i++) {
+                        values[i] = random.nextInt(7) == 0 ? null : (double) random.nextInt(6);
+                        rows[i] = new Object[]{values[i]};
+                    }
+                    GenericUDAFEvaluator evaluator = new GenericUDAFMap().getEvaluator(
+                            new TypeInfo[]{TypeInfoFactory.doubleTypeInfo});
+                    evaluator.init(Mode.COMPLETE,
+                            new ObjectInspector[]{PrimitiveObjectInspectorFactory.javaDoubleObjectInspector});
+                    List<Object> results = stream(evaluator, frame(preceding, following), rows);
+
+                    String message = "ROWS " + preceding + " PRECEDING AND " + following + " FOLLOWING, " + n + " rows";
+                    assertEquals(message, n, results.size());
+                    for (int i = 0; i < n; i++) {
+                        Map<Object, Long> expected = new HashMap<Object, Long>();
+                        int first = preceding < 0 ? 0 : Math.max(0, i - preceding);
+                        int last = Math.min(n - 1, i + following);
+                        for (int j = first; j <= last; j++) {
+                            if (values[j] != null) {
+                                Long count = expected.get(values[j]);
+                                expected.put(values[j], count == null ? 1L : count + 1);
+                            }
+                        }
+                        assertEquals(message + ", row " + i, expected, results.get(i));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.IntWritable;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * max_n_rows(k, double, string) 在 PARTIAL1 → PARTIAL2 → FINAL 各阶段之间传递部分结果。
+ */
+public class GenericUDAFMaxNRowsTest {
+
+    private static final TypeInfo[] TYPES = {
+            TypeInfoFactory.intTypeInfo, TypeInfoFactory.doubleTypeInfo, TypeInfoFactory.stringTypeInfo};
+
+    /* PARTIAL1 的输出 OI，也是 PARTIAL2 和 FINAL 的输入 OI */
+    private ObjectInspector partialOI;
+
+    private GenericUDAFEvaluator evaluator(Mode mode) throws Exception {
+        GenericUDAFEvaluator evaluator = new GenericUDAFMaxNRows().getEvaluator(TYPES);
+        if (mode == Mode.PARTIAL1) {
+            partialOI = evaluator.init(mode, new ObjectInspector[]{
+                    PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+                            TypeInfoFactory.intTypeInfo, new IntWritable(2)),
+                    PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+                    PrimitiveObjectInspectorFactory.javaStringObjectInspector});
+        } else {
+            evaluator.init(mode, new ObjectInspector[]{partialOI});
+        }
+        return evaluator;
+    }
+
+    /* 一个 map 任务的部分结果 */
+    private Object partial(GenericUDAFEvaluator partial1, double... keys) throws Exception {
+        AggregationBuffer agg = partial1.getNewAggregationBuffer();
+        for (double key : keys) {
+            partial1.iterate(agg, new Object[]{null, key, "row" + key});
+        }
+        return partial1.terminatePartial(agg);
+    }
+
+    @Test
+    public void testFinalWithoutPartials() throws Exception {
+        evaluator(Mode.PARTIAL1);
+        GenericUDAFEvaluator fin = evaluator(Mode.FINAL);
+        assertEquals(new ArrayList<Object>(), fin.terminate(fin.getNewAggregationBuffer()));
+    }
+
+    @Test
+    public void testEmptyCombinerPartial() throws Exception {
+        GenericUDAFEvaluator partial1 = evaluator(Mode.PARTIAL1);
+        // 没有收到任何行的 combiner 输出 k = 0 的部分结果
+        GenericUDAFEvaluator partial2 = evaluator(Mode.PARTIAL2);
+        Object empty = partial2.terminatePartial(partial2.getNewAggregationBuffer());
+
+        GenericUDAFEvaluator fin = evaluator(Mode.FINAL);
+        AggregationBuffer agg = fin.getNewAggregationBuffer();
+        fin.merge(agg, empty);
+        fin.merge(agg, partial(partial1, 3, 1, 4));
+        fin.merge(agg, empty);
+        fin.merge(agg, partial(partial1, 5, 2));
+
+        List<Object> expected = new ArrayList<Object>();
+        expected.add(Arrays.<Object>asList(5.0, "row5.0"));
+        expected.add(Arrays.<Object>asList(4.0, "row4.0"));
+        assertEquals(expected, fin.terminate(agg));
+    }
+}
@@ -0,0 +1,98 @@
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.Reporter;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * maxrow 发布的作业计数器。
+ */
+public class GenericUDAFMaxRowTest {
+
+    /* 只记录 incrCounter(group, counter, amount) 的 Reporter */
+    private static class RecordingReporter implements Reporter {
+        final Map<String, Long> counters = new HashMap<String, Long>();
+
+        long get(String counter) {
+            Long value = counters.get("maxrow." + counter);
+            return value == null ? 0 : value;
+        }
+
+        public void incrCounter(String group, String counter, long amount) {
+            String name = group + "." + counter;
+            counters.put(name, get(counter) + amount);
+        }
+
+        public void incrCounter(Enum<?> key, long amount) {
+        }
+
+        public Counters.Counter getCounter(Enum<?> name) {
+            return null;
+        }
+
+        public Counters.Counter getCounter(String group, String name) {
+            return null;
+        }
+
+        public void setStatus(String status) {
+        }
+
+        public InputSplit getInputSplit() {
+            return null;
+        }
+
+        public float getProgress() {
+            return 0;
+        }
+
+        public void progress() {
+        }
+    }
+
+    @Test
+    public void testMetricsCountOnlyFinalResults() throws Exception {
+        GenericUDAFMaxRow.GenericUDAFMaxRowEvaluator evaluator = (GenericUDAFMaxRow.GenericUDAFMaxRowEvaluator)
+                new GenericUDAFMaxRow().getEvaluator(
+                        new TypeInfo[]{TypeInfoFactory.doubleTypeInfo, TypeInfoFactory.stringTypeInfo});
+        evaluator.init(Mode.COMPLETE, new ObjectInspector[]{
+                PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+                PrimitiveObjectInspectorFactory.javaStringObjectInspector});
+        RecordingReporter reporter = new RecordingReporter();
+        evaluator.metrics = new AggregationMetrics("maxrow", reporter);
+
+        AggregationBuffer agg = evaluator.getNewAggregationBuffer();
+        evaluator.iterate(agg, new Object[]{1.0, "short"});
+        evaluator.iterate(agg, new Object[]{2.0, "a much longer string than the first one"});
+        assertEquals(Arrays.<Object>asList(2.0, "a much longer string than the first one"),
+                evaluator.terminatePartial(agg));
+        evaluator.metrics.flush();
+        assertEquals(0, reporter.get(AggregationMetrics.DISTINCT_KEYS));
+        long peak = reporter.get(AggregationMetrics.PEAK_BUFFER_BYTES);
+        assertTrue(peak > 0);
+
+        evaluator.terminate(agg);
+        evaluator.metrics.flush();
+        assertEquals(1, reporter.get(AggregationMetrics.DISTINCT_KEYS));
+        assertEquals(peak, reporter.get(AggregationMetrics.PEAK_BUFFER_BYTES));
+
+        // 更长的行让峰值变大
+        evaluator.reset(agg);
+        evaluator.iterate(agg, new Object[]{3.0, new String(new char[1000])});
+        evaluator.terminate(agg);
+        evaluator.metrics.flush();
+        assertEquals(2, reporter.get(AggregationMetrics.DISTINCT_KEYS));
+        assertTrue(reporter.get(AggregationMetrics.PEAK_BUFFER_BYTES) > peak + 900);
+    }
+}
@@ -0,0 +1,56 @@
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 按 Hive 流式窗口的调用方式驱动 maxrow 的窗口 evaluator，见 {@link GenericUDAFMapWindowEvaluatorTest#stream}。
+ */
+public class GenericUDAFMaxRowWindowEvaluatorTest {
+
+    @Test
+    public void testSlidingWindows() throws Exception {
+        Random random = new Random(7);
+        for (int preceding : new int[]{-1, 0, 1, 3, 10}) {
+            for (int following : new int[]{0, 1, 4}) {
+                for (int n : new int[]{0, 1, 2, 5, 50, 500}) {
+                    // 键的取值很少，窗口里经常有相等的最大值，检查保留的是先进窗口的行
+                    Object[][] rows = new Object[n][];
+                    for (int i = 0; i < n; i++) {
+                        rows[i] = new Object[]{(double) random.nextInt(8), "row" + i};
+                    }
+                    GenericUDAFEvaluator evaluator = new GenericUDAFMaxRow().getEvaluator(
+                            new TypeInfo[]{TypeInfoFactory.doubleTypeInfo, TypeInfoFactory.stringTypeInfo});
+                    evaluator.init(Mode.COMPLETE, new ObjectInspector[]{
+                            PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+                            PrimitiveObjectInspectorFactory.javaStringObjectInspector});
+                    List<Object> results = GenericUDAFMapWindowEvaluatorTest.stream(
+                            evaluator, GenericUDAFMapWindowEvaluatorTest.frame(preceding, following), rows);
+
+                    String message = "ROWS " + preceding + " PRECEDING AND " + following + " FOLLOWING, " + n + " rows";
+                    assertEquals(message, n, results.size());
+                    for (int i = 0; i < n; i++) {
+                        int first = preceding < 0 ? 0 : Math.max(0, i - preceding);
+                        int last = Math.min(n - 1, i + following);
+                        Object[] max = rows[first];
+                        for (int j = first + 1; j <= last; j++) {
+                            if ((Double) rows[j][0] > (Double) max[0]) {
+                                max = rows[j];
+                            }
+                        }
+                        assertEquals(message + ", row " + i, Arrays.asList(max), results.get(i));
+                    }
+                }
+            }
+        }
+    }
+}
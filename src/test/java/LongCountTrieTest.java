@@ -0,0 +1,76 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class LongCountTrieTest {
+
+    private static Map<Long, Long> toMap(LongCountTrie trie) {
+        Map<Long, Long> map = new HashMap<Long, Long>();
+        CountCursor cursor = trie.cursor();
+        while (cursor.next()) {
+            assertEquals(null, map.put(cursor.key(), cursor.count()));
+        }
+        assertEquals(trie.size(), map.size());
+        return map;
+    }
+
+    /* 随机加减，每一步都和 HashMap 比较，最后检查所有旧版本都没有变 */
+    @Test
+    public void testRandomUpdatesKeepOldVersions() {
+        Random random = new Random(11);
+        for (int keySpace : new int[]{1, 2, 40, 5000}) {
+            LongCountTrie trie = LongCountTrie.EMPTY;
+            Map<Long, Long> expected = new HashMap<Long, Long>();
+            List<LongCountTrie> versions = new ArrayList<LongCountTrie>();
+            List<Map<Long, Long>> expectedVersions = new ArrayList<Map<Long, Long>>();
+            for (int step = 0; step < 20000; step++) {
+                // 取值里有相邻的整数，也有只差高位的键
+                long key = random.nextInt(keySpace) * (random.nextBoolean() ? 1L : 1L << 40);
+                Long old = expected.get(key);
+                long delta = old != null && random.nextInt(3) == 0 ? -old : (old != null && random.nextBoolean() ? -1 : 1);
+                trie = trie.add(key, delta);
+                long count = (old == null ? 0 : old) + delta;
+                if (count == 0) {
+                    expected.remove(key);
+                } else {
+                    expected.put(key, count);
+                }
+                assertEquals(count, trie.get(key));
+                assertEquals(expected.size(), trie.size());
+                if (step % 97 == 0) {
+                    assertEquals(expected, toMap(trie));
+                    versions.add(trie);
+                    expectedVersions.add(new HashMap<Long, Long>(expected));
+                }
+            }
+            for (int i = 0; i < versions.size(); i++) {
+                assertEquals(expectedVersions.get(i), toMap(versions.get(i)));
+            }
+            // 全部删掉之后是空表
+            for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+                trie = trie.add(entry.getKey(), -entry.getValue());
+            }
+            assertEquals(0, trie.size());
+            assertEquals(new HashMap<Long, Long>(), toMap(trie));
+        }
+    }
+
+    @Test
+    public void testRemovingMissingKey() {
+        LongCountTrie trie = LongCountTrie.EMPTY.add(3, 1);
+        assertSame(trie, trie.add(4, 0));
+        assertEquals(0, trie.get(4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeCount() {
+        LongCountTrie.EMPTY.add(3, 1).add(3, -2);
+    }
+}